@@ -0,0 +1,77 @@
+package com.entertainment.nifi.processor.benchmark;
+
+import com.entertainment.nifi.processor.util.SplitEngine;
+import com.entertainment.nifi.processor.util.XMLSplitByCountUtil;
+import org.apache.nifi.processor.DataUnit;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLOutputFactory2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One operation copies one element, so with {@code -prof gc} the {@code gc.alloc.rate.norm} figure is the
+ * allocation per element. It should stay flat between the small and the large document, growth with the
+ * document size means something in the split loop allocates per chunk or per event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class InnerLoopBenchmark {
+
+    @Param({"1MB", "16MB"})
+    public String documentSize;
+
+    @Param({"512"})
+    public int elementSize;
+
+    @Param({"EVENT", "CURSOR", "VERBATIM"})
+    public SplitEngine engine;
+
+    private Path document;
+    private XMLInputFactory2 xmlInputFactory;
+    private XMLOutputFactory2 xmlOutputFactory;
+    private InputStream in;
+    private XMLSplitByCountUtil splitter;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        document = new XMLDocumentGenerator(
+                DataUnit.parseDataSize(documentSize, DataUnit.B).longValue(), elementSize, 1, 0, 1).generate();
+        xmlInputFactory = XMLSplitByCountUtil.createInputFactory();
+        xmlOutputFactory = XMLSplitByCountUtil.createOutputFactory();
+        open();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        splitter.close();
+        in.close();
+        Files.deleteIfExists(document);
+    }
+
+    private void open() throws IOException {
+        in = new BufferedInputStream(Files.newInputStream(document));
+        // chunks of one element, so per chunk allocations count as per element too
+        splitter = new XMLSplitByCountUtil(xmlInputFactory, xmlOutputFactory, null, in, 1, 1, null, null);
+        splitter.setEngine(engine);
+    }
+
+    @Benchmark
+    public int element() throws IOException {
+        if (!splitter.hasNext()) {
+            splitter.close();
+            in.close();
+            open();
+        }
+        return splitter.writeNext(SplitBenchmark.NullOutputStream.INSTANCE);
+    }
+}
@@ -0,0 +1,119 @@
+package com.entertainment.nifi.processor.benchmark;
+
+import com.entertainment.nifi.processor.util.SplitEngine;
+import com.entertainment.nifi.processor.util.XMLSplitByCountUtil;
+import org.apache.nifi.processor.DataUnit;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLOutputFactory2;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link XMLSplitByCountUtil} on generated documents, one operation splits the whole document.
+ * The {@link Rates} counters report input bytes and split elements per second, run with {@code -prof gc}
+ * for the allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitBenchmark {
+
+    @Param({"64KB", "16MB"})
+    public String documentSize;
+
+    @Param({"512"})
+    public int elementSize;
+
+    @Param({"1"})
+    public int nestingDepth;
+
+    @Param({"0", "4"})
+    public int namespaces;
+
+    @Param({"1"})
+    public int splitDepth;
+
+    @Param({"100"})
+    public int splitCount;
+
+    @Param({"EVENT", "CURSOR", "VERBATIM"})
+    public SplitEngine engine;
+
+    @Param({"true"})
+    public boolean sharedFactories;
+
+    private Path document;
+    private long documentBytes;
+    private long elements;
+    private XMLInputFactory2 xmlInputFactory;
+    private XMLOutputFactory2 xmlOutputFactory;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rates {
+        public long bytes;
+        public long elements;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            elements = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        final XMLDocumentGenerator generator = new XMLDocumentGenerator(
+                DataUnit.parseDataSize(documentSize, DataUnit.B).longValue(), elementSize, nestingDepth, namespaces, splitDepth);
+        document = generator.generate();
+        documentBytes = Files.size(document);
+        elements = generator.getElements();
+        xmlInputFactory = XMLSplitByCountUtil.createInputFactory();
+        xmlOutputFactory = XMLSplitByCountUtil.createOutputFactory();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        Files.deleteIfExists(document);
+    }
+
+    @Benchmark
+    public int split(Rates rates) throws IOException {
+        int chunks = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(document));
+             XMLSplitByCountUtil splitter = sharedFactories
+                     ? new XMLSplitByCountUtil(xmlInputFactory, xmlOutputFactory, null, in, splitDepth, splitCount, "<catalog>", "</catalog>")
+                     : new XMLSplitByCountUtil(in, splitDepth, splitCount, "<catalog>", "</catalog>")) {
+            splitter.setEngine(engine);
+            while (splitter.hasNext()) {
+                splitter.writeNext(NullOutputStream.INSTANCE);
+                chunks++;
+            }
+        }
+        rates.bytes += documentBytes;
+        rates.elements += elements;
+        return chunks;
+    }
+
+    static class NullOutputStream extends OutputStream {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.entertainment.nifi.processor.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes synthetic documents for the benchmarks: a root element declaring {@code namespaces} prefixes, wrapper
+ * elements down to {@code splitDepth}, then records of about {@code elementSize} bytes, each nesting its fields
+ * {@code nestingDepth} levels deep. Records cycle through the declared prefixes.
+ */
+public class XMLDocumentGenerator {
+
+    public static final String NAMESPACE = "http://www.entertainment.com/benchmark/";
+    // records per wrapper element when splitDepth is more than 1
+    private static final int RECORDS_PER_GROUP = 1000;
+
+    private final long documentSize;
+    private final int elementSize;
+    private final int nestingDepth;
+    private final int namespaces;
+    private final int splitDepth;
+
+    private long elements;
+
+    public XMLDocumentGenerator(long documentSize, int elementSize, int nestingDepth, int namespaces, int splitDepth) {
+        this.documentSize = documentSize;
+        this.elementSize = elementSize;
+        this.nestingDepth = nestingDepth;
+        this.namespaces = namespaces;
+        this.splitDepth = splitDepth;
+    }
+
+    /**
+     * @return number of elements at split depth in the last generated document
+     */
+    public long getElements() {
+        return elements;
+    }
+
+    public Path generate() throws IOException {
+        final Path file = Files.createTempFile("nifi_xmlsplitter_benchmark", ".xml");
+        file.toFile().deleteOnExit();
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16)) {
+            write(new CountingWriter(writer));
+        }
+        return file;
+    }
+
+    private void write(CountingWriter writer) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<catalog");
+        for (int i = 0; i < namespaces; i++) {
+            writer.write(" xmlns:ns" + i + "=\"" + NAMESPACE + i + "\"");
+        }
+        writer.write(">\n");
+        elements = 0;
+        while (writer.count < documentSize) {
+            for (int level = 1; level < splitDepth; level++) {
+                writer.write("<group level=\"" + level + "\">\n");
+            }
+            for (int i = 0; i < RECORDS_PER_GROUP && writer.count < documentSize; i++) {
+                writeRecord(writer, elements++);
+            }
+            for (int level = 1; level < splitDepth; level++) {
+                writer.write("</group>\n");
+            }
+        }
+        writer.write("</catalog>\n");
+    }
+
+    private void writeRecord(CountingWriter writer, long id) throws IOException {
+        final String name = namespaces == 0 ? "record" : "ns" + (id % namespaces) + ":record";
+        final long start = writer.count;
+        writer.write("<" + name + " id=\"" + id + "\" type=\"t" + (id % 7) + "\">");
+        for (int level = 0; level < nestingDepth; level++) {
+            writer.write("<nested level=\"" + level + "\">");
+        }
+        int field = 0;
+        do {
+            writer.write("<field" + field + ">value " + id + " &amp; some filler text for field " + field + "</field" + field + ">");
+            field++;
+        } while (writer.count - start < elementSize);
+        for (int level = 0; level < nestingDepth; level++) {
+            writer.write("</nested>");
+        }
+        writer.write("</" + name + ">\n");
+    }
+
+    private static class CountingWriter {
+        private final Writer writer;
+        private long count;
+
+        private CountingWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        private void write(String s) throws IOException {
+            writer.write(s);
+            // generated markup is ascii
+            count += s.length();
+        }
+    }
+}
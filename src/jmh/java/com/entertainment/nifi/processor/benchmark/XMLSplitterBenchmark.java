@@ -0,0 +1,73 @@
+package com.entertainment.nifi.processor.benchmark;
+
+import com.entertainment.nifi.processor.XMLSplitter;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link XMLSplitter} path through the mock framework, one operation splits one FlowFile.
+ * Keep documents small, the mock content repository holds everything on the heap.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XMLSplitterBenchmark {
+
+    @Param({"4KB", "1MB"})
+    public String documentSize;
+
+    @Param({"512"})
+    public int elementSize;
+
+    @Param({"100"})
+    public int splitCount;
+
+    @Param({"EVENT", "CURSOR", "VERBATIM"})
+    public String engine;
+
+    @Param({"Content Repository"})
+    public String outputStrategy;
+
+    private byte[] document;
+    private long elements;
+    private TestRunner runner;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final XMLDocumentGenerator generator = new XMLDocumentGenerator(
+                DataUnit.parseDataSize(documentSize, DataUnit.B).longValue(), elementSize, 1, 0, 1);
+        final Path file = generator.generate();
+        document = Files.readAllBytes(file);
+        elements = generator.getElements();
+        Files.delete(file);
+
+        runner = TestRunners.newTestRunner(new XMLSplitter());
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, Integer.toString(splitCount));
+        runner.setProperty(XMLSplitter.HEADER, "<catalog>");
+        runner.setProperty(XMLSplitter.FOOTER, "</catalog>");
+        runner.setProperty(XMLSplitter.SPLIT_ENGINE, engine);
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, outputStrategy);
+    }
+
+    @Benchmark
+    public int onTrigger(SplitBenchmark.Rates rates) {
+        runner.clearTransferState();
+        runner.enqueue(document);
+        runner.run(1);
+        rates.bytes += document.length;
+        rates.elements += elements;
+        return runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT).size();
+    }
+}
@@ -1,28 +1,71 @@
 package com.entertainment.nifi.processor;
 
+import com.entertainment.nifi.processor.util.Checkpoint;
+import com.entertainment.nifi.processor.util.ChunkIndex;
+import com.entertainment.nifi.processor.util.Compression;
+import com.entertainment.nifi.processor.util.ElementPath;
+import com.entertainment.nifi.processor.util.LimitExceededException;
+import com.entertainment.nifi.processor.util.PartitionKey;
+import com.entertainment.nifi.processor.util.SplitEngine;
+import com.entertainment.nifi.processor.util.SplitMetrics;
 import com.entertainment.nifi.processor.util.XMLSplitByCountUtil;
 import org.apache.nifi.annotation.behavior.DynamicProperties;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.type.ArrayDataType;
+import org.apache.nifi.serialization.record.type.RecordDataType;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLOutputFactory2;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+import org.codehaus.stax2.validation.XMLValidationSchemaFactory;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import javax.xml.stream.XMLStreamException;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 
 
@@ -32,25 +75,48 @@ import org.apache.nifi.flowfile.attributes.CoreAttributes;
  */
 @Tags({"XML", "Split"})
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
-@CapabilityDescription("Split large xml files into chunks by element count")
+@CapabilityDescription("Split large xml files into chunks by element count.")
 @WritesAttributes({
         @WritesAttribute(attribute = "fragment.identifier",
                 description = "All split FlowFiles produced from the same parent FlowFile will have the same randomly generated UUID added for this attribute"),
         @WritesAttribute(attribute = "fragment.index",
-                description = "A one-up number that indicates the ordering of the split FlowFiles that were created from a single parent FlowFile"),
+                description = "A one-up number that indicates the ordering of the split FlowFiles that were created from a single parent FlowFile. "
+                        + "On an original that failed after a Commit Batch Size committed some of its splits, the index of the first "
+                        + "split that was not committed, together with fragment.identifier"),
         @WritesAttribute(attribute = "fragment.count",
-                description = "The number of split FlowFiles generated from the parent FlowFile"),
-        @WritesAttribute(attribute = "segment.original.filename ", description = "The filename of the parent FlowFile")
+                description = "The number of split FlowFiles generated from the parent FlowFile. With a Commit Batch Size "
+                        + "it is only written to the original FlowFile, together with fragment.identifier"),
+        @WritesAttribute(attribute = "segment.original.filename ", description = "The filename of the parent FlowFile"),
+        @WritesAttribute(attribute = "partition.key", description = "The partition key shared by the elements of the split, only written with a Partition Key"),
+        @WritesAttribute(attribute = "validation.error", description = "The first schema validation problem of the elements of an "
+                + "invalid split, on the original the first one found after its last split element"),
+        @WritesAttribute(attribute = "record.count", description = "The number of records in the split, only written with a Record Writer"),
+        @WritesAttribute(attribute = "mime.type", description = "The mime type of the Output Compression, or else of the Record Writer, "
+                + "only written with either of them")
 })
-public class XMLSplitter extends AbstractProcessor {
+@Stateful(scopes = Scope.LOCAL, description = "With Checkpoint Batches, where the split of an original FlowFile got to after its last committed "
+        + "batch of splits, keyed by the uuid of the original. Removed once the original is transferred.")
+public class XMLSplitter extends AbstractSessionFactoryProcessor {
 
     private List<PropertyDescriptor> properties;
     private Set<Relationship> relationships;
+    private volatile ExecutorService writers;
+    private volatile XMLInputFactory2 xmlInputFactory;
+    private volatile XMLOutputFactory2 xmlOutputFactory;
+    private volatile ElementPath elementPath;
+    private volatile PartitionKey partitionKey;
+    private volatile PartitionKey manifestKey;
+    private volatile XMLValidationSchema schema;
+    private volatile Settings settings;
 
     public static final String FRAGMENT_IDENTIFIER = "fragment.identifier";
     public static final String FRAGMENT_INDEX = "fragment.index";
     public static final String FRAGMENT_COUNT = "fragment.count";
     public static final String SEGMENT_ORIGINAL_FILENAME="segment.original.filename";
+    public static final String PARTITION_KEY_ATTRIBUTE = "partition.key";
+    public static final String VALIDATION_ERROR = "validation.error";
+    // state key of the util Checkpoint, next to fragment.identifier and fragment.index
+    private static final String CHECKPOINT_KEY = "checkpoint";
 
     public static final PropertyDescriptor SPLIT_DEPTH = new PropertyDescriptor.Builder()
             .name("Split Depth")
@@ -61,15 +127,65 @@ public class XMLSplitter extends AbstractProcessor {
             .defaultValue("1")
             .build();
 
+    public static final PropertyDescriptor SPLIT_ELEMENT_PATH = new PropertyDescriptor.Builder()
+            .name("Split Element Path")
+            .description("Split the elements selected by this path instead of all elements at Split Depth, e.g. /catalog/book or "
+                    + "//book[@type='x']. Supports / and // steps, * and attribute predicates [@name] and [@name='value'], "
+                    + "names are matched on their local part. Subtrees that cannot hold a selected element are skipped.")
+            .required(false)
+            .addValidator((subject, input, context) -> {
+                try {
+                    ElementPath.compile(input);
+                    return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+                } catch (IllegalArgumentException e) {
+                    return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+                }
+            })
+            .build();
+
     public static final PropertyDescriptor SPLIT_COUNT = new PropertyDescriptor.Builder()
             .name("Split Count")
-            .description("How many elements at depth in one split file.")
+            .description("How many elements at depth in one split file. 0 means no count limit, the splits are then bounded by Max Split Size only.")
             .required(true)
-            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
             .expressionLanguageSupported(true)
             .defaultValue("10")
             .build();
 
+    public static final PropertyDescriptor MAX_SPLIT_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Split Size")
+            .description("Maximum size of one split file. Once a split reaches this size it is closed at the next element boundary, "
+                    + "so a split exceeds it by at most one element. Can be combined with Split Count, whichever limit is hit first closes the split.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .build();
+    public static final PropertyDescriptor MAX_ELEMENT_SIZE = new PropertyDescriptor.Builder()
+            .name("Max Element Size")
+            .description("Maximum size of one split element, measured in chars of the input. A larger element is not buffered, the "
+                    + "split stops as soon as the element grows beyond it and the original goes to oversized. Splits already "
+                    + "committed by a Commit Batch Size stay where they are, the original carries the fragment.index of the first "
+                    + "split that was not.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_TEXT_LENGTH = new PropertyDescriptor.Builder()
+            .name("Max Text Length")
+            .description("Maximum length of one text node or attribute value, measured in chars, an original with a longer one goes "
+                    + "to oversized. The Event engine and a Record Writer hold a whole text node in memory. The Cursor engine streams "
+                    + "the text nodes it copies into xml splits in pieces and does not apply the limit to them, only to attribute values.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_NESTING_DEPTH = new PropertyDescriptor.Builder()
+            .name("Max Nesting Depth")
+            .description("Maximum depth elements can be nested to anywhere in the original, an original with deeper elements goes "
+                    + "to oversized.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+
     public static final PropertyDescriptor HEADER = new PropertyDescriptor.Builder()
             .name("Header")
             .description("Header to prepend, usually parent xml opening tags.")
@@ -84,9 +200,199 @@ public class XMLSplitter extends AbstractProcessor {
             .required(false)
             .expressionLanguageSupported(true)
             .build();
+    public static final PropertyDescriptor WRAP_IN_ANCESTORS = new PropertyDescriptor.Builder()
+            .name("Wrap In Ancestors")
+            .description("Wrap every split in the xml declaration and the start tags of its elements' ancestors, including their namespace "
+                    + "declarations and attributes, as found in the original FlowFile, and close them at the end of the split. "
+                    + "Header and Footer are ignored. A split is closed early where the ancestors change, so all of its elements share the same ancestors.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final AllowableValue OUTPUT_WORK_DIR = new AllowableValue("Work Dir", "Work Dir",
+            "Write every split to a temp file under Work Dir first, then import the file into the content repository.");
+    public static final AllowableValue OUTPUT_CONTENT_REPOSITORY = new AllowableValue("Content Repository", "Content Repository",
+            "Stream every split straight into the content of its FlowFile, no temp files are involved.");
+
+    public static final PropertyDescriptor OUTPUT_STRATEGY = new PropertyDescriptor.Builder()
+            .name("Output Strategy")
+            .description("Where the splits are written while the original FlowFile is parsed.")
+            .required(true)
+            .allowableValues(OUTPUT_WORK_DIR, OUTPUT_CONTENT_REPOSITORY)
+            .defaultValue(OUTPUT_WORK_DIR.getValue())
+            .build();
+    public static final AllowableValue ENGINE_EVENT = new AllowableValue(SplitEngine.EVENT.name(), "Event",
+            "XMLEventReader/XMLEventWriter, every tag, attribute and text run becomes an object on the heap.");
+    public static final AllowableValue ENGINE_CURSOR = new AllowableValue(SplitEngine.CURSOR.name(), "Cursor",
+            "Stax2 XMLStreamReader/XMLStreamWriter, split elements are passed through without creating an object per event.");
+    public static final AllowableValue ENGINE_VERBATIM = new AllowableValue(SplitEngine.VERBATIM.name(), "Verbatim",
+            "The parser only finds element boundaries, the chars of each split element are copied from the input unchanged, "
+                    + "keeping formatting, whitespace and entity references. Splits are written in the encoding of the input.");
+
+    public static final PropertyDescriptor SPLIT_ENGINE = new PropertyDescriptor.Builder()
+            .name("Split Engine")
+            .description("The StAX API used to read and write the split elements.")
+            .required(true)
+            .allowableValues(ENGINE_EVENT, ENGINE_CURSOR, ENGINE_VERBATIM)
+            .defaultValue(ENGINE_EVENT.getValue())
+            .build();
+    public static final AllowableValue COMPRESSION_DETECT = new AllowableValue("DETECT", "Detect",
+            "Detect gzip, bzip2 or xz from the first bytes of the FlowFile, anything else is read as uncompressed xml.");
+    public static final AllowableValue COMPRESSION_NONE = new AllowableValue(Compression.NONE.name(), "None", "Not compressed.");
+    public static final AllowableValue COMPRESSION_GZIP = new AllowableValue(Compression.GZIP.name(), "gzip", "gzip, concatenated members are read as one stream.");
+    public static final AllowableValue COMPRESSION_BZIP2 = new AllowableValue(Compression.BZIP2.name(), "bzip2", "bzip2, the level is the block size in 100k units.");
+    public static final AllowableValue COMPRESSION_XZ = new AllowableValue(Compression.XZ.name(), "xz", "xz, the level is the LZMA2 preset.");
+
+    public static final PropertyDescriptor INPUT_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("Input Compression")
+            .description("Compression of the original FlowFile, it is decompressed while it is parsed.")
+            .required(true)
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_DETECT, COMPRESSION_GZIP, COMPRESSION_BZIP2, COMPRESSION_XZ)
+            .defaultValue(COMPRESSION_NONE.getValue())
+            .build();
+    public static final PropertyDescriptor OUTPUT_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("Output Compression")
+            .description("Compress every split while it is written and set its mime.type to the compressed format. With Writer Threads "
+                    + "the splits are compressed on the writer threads. Max Split Size still counts the uncompressed bytes.")
+            .required(true)
+            .allowableValues(COMPRESSION_NONE, COMPRESSION_GZIP, COMPRESSION_BZIP2, COMPRESSION_XZ)
+            .defaultValue(COMPRESSION_NONE.getValue())
+            .build();
+    public static final PropertyDescriptor OUTPUT_COMPRESSION_LEVEL = new PropertyDescriptor.Builder()
+            .name("Output Compression Level")
+            .description("From 0, fastest, to 9, smallest. Only used with an Output Compression.")
+            .required(true)
+            .addValidator(StandardValidators.createLongValidator(0, 9, true))
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor WRITER_THREADS = new PropertyDescriptor.Builder()
+            .name("Writer Threads")
+            .description("Number of threads serializing splits while the original FlowFile is parsed on the task thread. "
+                    + "1 parses and writes on the task thread only. More than 1 requires Output Strategy Content Repository.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor WRITER_QUEUE_SIZE = new PropertyDescriptor.Builder()
+            .name("Writer Queue Size")
+            .description("Maximum number of splits captured from the parser and not yet written to their FlowFile, "
+                    + "bounds the heap used by Writer Threads. Only used when Writer Threads is more than 1.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("8")
+            .build();
+    public static final PropertyDescriptor SPECULATIVE_RANGE_SIZE = new PropertyDescriptor.Builder()
+            .name("Speculative Range Size")
+            .description("Parse one original in ranges of about this size on the Writer Threads at the same time, instead of on the task "
+                    + "thread alone. The original is cut where a start tag with the name of the first split element begins, every range is "
+                    + "checked to have been cut between two elements, and the rest is split serially from the first range that was not. "
+                    + "A split never spans two ranges. Requires the Verbatim engine and more than 1 Writer Thread, Writer Queue Size bounds "
+                    + "the ranges held in memory. Originals with a DTD or in an encoding like UTF-16 are split serially. Not used with a "
+                    + "Record Writer or Partition Key.")
+            .required(false)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor FLOWFILE_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("FlowFile Batch Size")
+            .description("Maximum number of original FlowFiles split in one session, for many small FlowFiles. A failing FlowFile "
+                    + "goes to failure on its own, an unexpected error rolls back the whole batch.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .build();
+    public static final PropertyDescriptor COMMIT_BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("Commit Batch Size")
+            .description("Number of splits committed together while the original FlowFile is still being parsed, so the first "
+                    + "splits go downstream before the whole file is read. 0 commits all splits with the original at the end. "
+                    + "Committed splits do not carry fragment.count, it is written to the original FlowFile instead, and they are "
+                    + "not withdrawn if the original later fails. More than 0 requires Output Strategy Content Repository.")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .build();
+    public static final PropertyDescriptor CHECKPOINT_BATCHES = new PropertyDescriptor.Builder()
+            .name("Checkpoint Batches")
+            .description("Record in local state where the original FlowFile was split up to, each time a batch of splits is committed. "
+                    + "If the split does not finish, for example because the node restarts, the retry skips the part of the original that "
+                    + "was split already and continues with the same fragment.identifier and the next fragment.index. A batch committed "
+                    + "just before a failure can be written twice. The checkpoint is kept when the original goes to failure or oversized "
+                    + "and only removed once it is split, so a retry from there resumes as well. An original with a DOCTYPE goes to "
+                    + "failure, a resumed split would lack its entities. Requires a Commit Batch Size, cannot be combined with a "
+                    + "Partition Key, the Event engine is replaced by Cursor.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("Record Writer")
+            .description("Write every split as a record set instead of xml. Attributes and child elements of the split elements become fields "
+                    + "named by their local name, repeated children become arrays, text next to attributes or children goes to a field named "
+                    + "'value'. Wrap In Ancestors and Writer Threads are not used, the Event engine is replaced by Cursor. Requires Output "
+                    + "Strategy Content Repository, cannot be combined with a Header, a Footer or an Output Compression, the writer owns "
+                    + "the format of the splits.")
+            .required(false)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .build();
+    private static final Validator KEY_VALIDATOR = (subject, input, context) -> {
+        try {
+            PartitionKey.compile(input);
+            return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+        } catch (IllegalArgumentException e) {
+            return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+        }
+    };
+    public static final PropertyDescriptor PARTITION_KEY = new PropertyDescriptor.Builder()
+            .name("Partition Key")
+            .description("Group the split elements by a key found inside them, so that every split holds elements with the same key, "
+                    + "written to the partition.key attribute. The key is relative to the split element: @id for one of its attributes, "
+                    + "genre for the text of a child element, info/genre/@lang further down. Elements without the key share the empty key. "
+                    + "Writer Threads are not used, the Event engine is replaced by Cursor. The open split of every key is held in memory, "
+                    + "so a Max Split Size is required, Max Open Partitions times Max Split Size bounds the heap used. Requires Output "
+                    + "Strategy Content Repository.")
+            .required(false)
+            .addValidator(KEY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor MAX_OPEN_PARTITIONS = new PropertyDescriptor.Builder()
+            .name("Max Open Partitions")
+            .description("Maximum number of partitions with a split held in memory while the original is parsed. A new key beyond it "
+                    + "closes the split of the least recently used key early. Only used with a Partition Key.")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("16")
+            .build();
+    public static final PropertyDescriptor WRITE_MANIFEST = new PropertyDescriptor.Builder()
+            .name("Write Manifest")
+            .description("Write a manifest of the splits to the manifest relationship next to the original, a json array with one object "
+                    + "per split on a line of its own: its fragment.index, the start and end char offset in the decompressed original of "
+                    + "the elements it holds, which are byte offsets in a single byte encoding, their count, and with a Manifest Key the "
+                    + "key of the first and the last of them. The manifest of a resumed split only lists the splits written after the "
+                    + "resume. The Event engine is replaced by Cursor. Requires Output Strategy Content Repository, cannot be combined "
+                    + "with a Partition Key or a Speculative Range Size.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+    public static final PropertyDescriptor MANIFEST_KEY = new PropertyDescriptor.Builder()
+            .name("Manifest Key")
+            .description("Key to list the first and last value of in the manifest entry of every split, relative to the split element "
+                    + "like a Partition Key. Not listed with a Record Writer. Only used with Write Manifest.")
+            .required(false)
+            .addValidator(KEY_VALIDATOR)
+            .build();
+    public static final PropertyDescriptor SCHEMA_FILE = new PropertyDescriptor.Builder()
+            .name("Schema File")
+            .description("XML Schema to validate the original against while it is split, in the same pass. Split elements with a "
+                    + "validation problem go to splits of their own on the invalid relationship, the others continue into the splits. "
+                    + "A problem between two split elements is charged to the element after it. The open valid and invalid splits are "
+                    + "held in memory until they are full, so a Max Split Size is required. The Event engine is replaced by Cursor, Writer Threads are not used. Requires Output Strategy Content "
+                    + "Repository, cannot be combined with a Record Writer, a Partition Key, Checkpoint Batches, a Speculative Range "
+                    + "Size or Write Manifest.")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
     public static final PropertyDescriptor WORK_DIR = new PropertyDescriptor.Builder()
             .name("Work Dir")
-            .description("Footer to append, usually parent xml closing tags.")
+            .description("Directory for the temp split files, defaults to java.io.tmpdir. Only used when Output Strategy is Work Dir.")
             .addValidator(StandardValidators.DirectoryExistsValidator.VALID)
             .required(false)
             .expressionLanguageSupported(true)
@@ -105,13 +411,48 @@ public class XMLSplitter extends AbstractProcessor {
             .name("failure")
             .description("If a FlowFile fails processing for any reason (for example, the FlowFile is not valid XML), it will be routed to this relationship")
             .build();
+    public static final Relationship REL_OVERSIZED = new Relationship.Builder()
+            .name("oversized")
+            .description("Original FlowFiles that break Max Element Size, Max Text Length or Max Nesting Depth, instead of failure")
+            .build();
+    public static final Relationship REL_INVALID = new Relationship.Builder()
+            .name("invalid")
+            .description("Splits of the elements that failed validation against the Schema File, with the first problem in validation.error")
+            .build();
+    public static final Relationship REL_MANIFEST = new Relationship.Builder()
+            .name("manifest")
+            .description("The manifest of the splits of an original FlowFile, only with Write Manifest")
+            .build();
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> properties = new ArrayList<>();
         properties.add(SPLIT_DEPTH);
+        properties.add(SPLIT_ELEMENT_PATH);
         properties.add(SPLIT_COUNT);
+        properties.add(MAX_SPLIT_SIZE);
+        properties.add(MAX_ELEMENT_SIZE);
+        properties.add(MAX_TEXT_LENGTH);
+        properties.add(MAX_NESTING_DEPTH);
         properties.add(HEADER);
         properties.add(FOOTER);
+        properties.add(WRAP_IN_ANCESTORS);
+        properties.add(OUTPUT_STRATEGY);
+        properties.add(SPLIT_ENGINE);
+        properties.add(INPUT_COMPRESSION);
+        properties.add(OUTPUT_COMPRESSION);
+        properties.add(OUTPUT_COMPRESSION_LEVEL);
+        properties.add(WRITER_THREADS);
+        properties.add(WRITER_QUEUE_SIZE);
+        properties.add(SPECULATIVE_RANGE_SIZE);
+        properties.add(FLOWFILE_BATCH_SIZE);
+        properties.add(COMMIT_BATCH_SIZE);
+        properties.add(CHECKPOINT_BATCHES);
+        properties.add(RECORD_WRITER);
+        properties.add(PARTITION_KEY);
+        properties.add(MAX_OPEN_PARTITIONS);
+        properties.add(WRITE_MANIFEST);
+        properties.add(MANIFEST_KEY);
+        properties.add(SCHEMA_FILE);
         properties.add(WORK_DIR);
         this.properties = Collections.unmodifiableList(properties);
 
@@ -119,6 +460,9 @@ public class XMLSplitter extends AbstractProcessor {
         relationships.add(REL_ORIGINAL);
         relationships.add(REL_SPLIT);
         relationships.add(REL_FAILURE);
+        relationships.add(REL_OVERSIZED);
+        relationships.add(REL_MANIFEST);
+        relationships.add(REL_INVALID);
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -134,56 +478,798 @@ public class XMLSplitter extends AbstractProcessor {
 
 
     @Override
-    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-        final FlowFile original = session.get();
-        if (original == null) {
-            return;
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+        if ("0".equals(validationContext.getProperty(SPLIT_COUNT).getValue()) && !validationContext.getProperty(MAX_SPLIT_SIZE).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(SPLIT_COUNT.getName())
+                    .valid(false)
+                    .explanation("Split Count of 0 requires Max Split Size to be set")
+                    .build());
+        }
+        if (validationContext.getProperty(WRITER_THREADS).asInteger() > 1
+                && !OUTPUT_CONTENT_REPOSITORY.getValue().equals(validationContext.getProperty(OUTPUT_STRATEGY).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(WRITER_THREADS.getName())
+                    .valid(false)
+                    .explanation("More than 1 Writer Thread requires Output Strategy " + OUTPUT_CONTENT_REPOSITORY.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(SPECULATIVE_RANGE_SIZE).isSet()) {
+            if (!ENGINE_VERBATIM.getValue().equals(validationContext.getProperty(SPLIT_ENGINE).getValue())
+                    || validationContext.getProperty(WRITER_THREADS).asInteger() < 2) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SPECULATIVE_RANGE_SIZE.getName())
+                        .valid(false)
+                        .explanation("A Speculative Range Size requires the " + ENGINE_VERBATIM.getDisplayName() + " engine and more than 1 Writer Thread")
+                        .build());
+            }
+            if (validationContext.getProperty(CHECKPOINT_BATCHES).asBoolean()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SPECULATIVE_RANGE_SIZE.getName())
+                        .valid(false)
+                        .explanation("A Speculative Range Size cannot be combined with Checkpoint Batches")
+                        .build());
+            }
+        }
+        if (validationContext.getProperty(COMMIT_BATCH_SIZE).asInteger() > 0
+                && !OUTPUT_CONTENT_REPOSITORY.getValue().equals(validationContext.getProperty(OUTPUT_STRATEGY).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(COMMIT_BATCH_SIZE.getName())
+                    .valid(false)
+                    .explanation("A Commit Batch Size requires Output Strategy " + OUTPUT_CONTENT_REPOSITORY.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(CHECKPOINT_BATCHES).asBoolean()) {
+            if (validationContext.getProperty(COMMIT_BATCH_SIZE).asInteger() == 0) {
+                results.add(new ValidationResult.Builder()
+                        .subject(CHECKPOINT_BATCHES.getName())
+                        .valid(false)
+                        .explanation("Checkpoint Batches requires a Commit Batch Size")
+                        .build());
+            }
+            if (validationContext.getProperty(PARTITION_KEY).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(CHECKPOINT_BATCHES.getName())
+                        .valid(false)
+                        .explanation("Checkpoint Batches cannot be combined with a Partition Key")
+                        .build());
+            }
+        }
+        if (validationContext.getProperty(RECORD_WRITER).isSet()
+                && !OUTPUT_CONTENT_REPOSITORY.getValue().equals(validationContext.getProperty(OUTPUT_STRATEGY).getValue())) {
+            results.add(new ValidationResult.Builder()
+                    .subject(RECORD_WRITER.getName())
+                    .valid(false)
+                    .explanation("A Record Writer requires Output Strategy " + OUTPUT_CONTENT_REPOSITORY.getDisplayName())
+                    .build());
+        }
+        if (validationContext.getProperty(RECORD_WRITER).isSet()
+                && (validationContext.getProperty(HEADER).isSet() || validationContext.getProperty(FOOTER).isSet()
+                || !COMPRESSION_NONE.getValue().equals(validationContext.getProperty(OUTPUT_COMPRESSION).getValue()))) {
+            results.add(new ValidationResult.Builder()
+                    .subject(RECORD_WRITER.getName())
+                    .valid(false)
+                    .explanation("A Record Writer cannot be combined with a Header, a Footer or an Output Compression")
+                    .build());
+        }
+        if (validationContext.getProperty(PARTITION_KEY).isSet()) {
+            if (!OUTPUT_CONTENT_REPOSITORY.getValue().equals(validationContext.getProperty(OUTPUT_STRATEGY).getValue())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(PARTITION_KEY.getName())
+                        .valid(false)
+                        .explanation("A Partition Key requires Output Strategy " + OUTPUT_CONTENT_REPOSITORY.getDisplayName())
+                        .build());
+            }
+            if (validationContext.getProperty(RECORD_WRITER).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(PARTITION_KEY.getName())
+                        .valid(false)
+                        .explanation("A Partition Key cannot be combined with a Record Writer")
+                        .build());
+            }
+            if (!validationContext.getProperty(MAX_SPLIT_SIZE).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(PARTITION_KEY.getName())
+                        .valid(false)
+                        .explanation("A Partition Key requires a Max Split Size, the open splits are held in memory")
+                        .build());
+            }
+        }
+        if (validationContext.getProperty(WRITE_MANIFEST).asBoolean()) {
+            if (!OUTPUT_CONTENT_REPOSITORY.getValue().equals(validationContext.getProperty(OUTPUT_STRATEGY).getValue())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(WRITE_MANIFEST.getName())
+                        .valid(false)
+                        .explanation("Write Manifest requires Output Strategy " + OUTPUT_CONTENT_REPOSITORY.getDisplayName())
+                        .build());
+            }
+            if (validationContext.getProperty(PARTITION_KEY).isSet() || validationContext.getProperty(SPECULATIVE_RANGE_SIZE).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(WRITE_MANIFEST.getName())
+                        .valid(false)
+                        .explanation("Write Manifest cannot be combined with a Partition Key or a Speculative Range Size, "
+                                + "their splits do not span one range of the original")
+                        .build());
+            }
+        }
+        if (validationContext.getProperty(SCHEMA_FILE).isSet()) {
+            if (!OUTPUT_CONTENT_REPOSITORY.getValue().equals(validationContext.getProperty(OUTPUT_STRATEGY).getValue())) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SCHEMA_FILE.getName())
+                        .valid(false)
+                        .explanation("A Schema File requires Output Strategy " + OUTPUT_CONTENT_REPOSITORY.getDisplayName())
+                        .build());
+            }
+            if (validationContext.getProperty(RECORD_WRITER).isSet() || validationContext.getProperty(PARTITION_KEY).isSet()
+                    || validationContext.getProperty(CHECKPOINT_BATCHES).asBoolean() || validationContext.getProperty(SPECULATIVE_RANGE_SIZE).isSet()
+                    || validationContext.getProperty(WRITE_MANIFEST).asBoolean()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SCHEMA_FILE.getName())
+                        .valid(false)
+                        .explanation("A Schema File cannot be combined with a Record Writer, a Partition Key, Checkpoint Batches, "
+                                + "a Speculative Range Size or Write Manifest")
+                        .build());
+            }
+            if (!validationContext.getProperty(MAX_SPLIT_SIZE).isSet()) {
+                results.add(new ValidationResult.Builder()
+                        .subject(SCHEMA_FILE.getName())
+                        .valid(false)
+                        .explanation("A Schema File requires a Max Split Size, the open splits are held in memory")
+                        .build());
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        // configured once, the factories are shared by all concurrent tasks
+        final PropertyValue maxTextLength = context.getProperty(MAX_TEXT_LENGTH);
+        xmlInputFactory = XMLSplitByCountUtil.createInputFactory(context.getProperty(MAX_NESTING_DEPTH).asInteger(),
+                maxTextLength.isSet() ? (int) Math.min(maxTextLength.asDataSize(DataUnit.B).longValue(), Integer.MAX_VALUE) : 0);
+        xmlOutputFactory = XMLSplitByCountUtil.createOutputFactory();
+        final String path = context.getProperty(SPLIT_ELEMENT_PATH).getValue();
+        elementPath = path == null ? null : ElementPath.compile(path);
+        final String key = context.getProperty(PARTITION_KEY).getValue();
+        partitionKey = key == null ? null : PartitionKey.compile(key);
+        final String manifest = context.getProperty(MANIFEST_KEY).getValue();
+        manifestKey = manifest == null ? null : PartitionKey.compile(manifest);
+        final String schemaFile = context.getProperty(SCHEMA_FILE).getValue();
+        try {
+            // compiled once, a schema is shared by the readers of all tasks
+            schema = schemaFile == null ? null
+                    : XMLValidationSchemaFactory.newInstance(XMLValidationSchema.SCHEMA_ID_W3C_SCHEMA).createSchema(new File(schemaFile));
+        } catch (XMLStreamException e) {
+            throw new ProcessException("Failed to load the Schema File " + schemaFile, e);
+        }
+        settings = new Settings(context);
+
+        final int threads = context.getProperty(WRITER_THREADS).asInteger();
+        if (threads > 1) {
+            final AtomicInteger threadCount = new AtomicInteger(0);
+            writers = Executors.newFixedThreadPool(threads, r -> {
+                final Thread thread = new Thread(r, "XMLSplitter writer " + getIdentifier() + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (writers != null) {
+            writers.shutdownNow();
+            writers = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSessionFactory sessionFactory) throws ProcessException {
+        final Settings settings = this.settings;
+        final ProcessSession session = sessionFactory.createSession();
+        final List<String> finished = new ArrayList<>();
+        try {
+            for (FlowFile original : session.get(settings.flowFileBatchSize)) {
+                final String originalId = split(context, settings, session, sessionFactory, original);
+                if (originalId != null) {
+                    finished.add(originalId);
+                }
+            }
+            session.commit();
+        } catch (final RuntimeException e) {
+            // an Error is left to the framework, the batch is not penalized for it
+            session.rollback(true);
+            throw e;
+        }
+        if (!finished.isEmpty()) {
+            // only once the originals are gone, a retry before that still needs the checkpoint
+            saveCheckpoint(context.getStateManager(), finished, null);
         }
+    }
 
-        final int depth = context.getProperty(SPLIT_DEPTH).evaluateAttributeExpressions(original).asInteger();
-        final int count = context.getProperty(SPLIT_COUNT).evaluateAttributeExpressions(original).asInteger();
+    /**
+     * Split one original in the session, which the caller commits.
+     * @return uuid of the original whose checkpoint can be removed once the session is committed
+     */
+    private String split(ProcessContext context, Settings settings, ProcessSession session, ProcessSessionFactory sessionFactory,
+                         FlowFile original) throws ProcessException {
+        final int depth = settings.evaluate(context, SPLIT_DEPTH, original).asInteger();
+        final int count = settings.evaluate(context, SPLIT_COUNT, original).asInteger();
+        final PropertyValue maxSplitSizeProperty = settings.evaluate(context, MAX_SPLIT_SIZE, original);
+        final long maxSplitSize = maxSplitSizeProperty.isSet() ? maxSplitSizeProperty.asDataSize(DataUnit.B).longValue() : 0;
 
-        final String header = context.getProperty(HEADER).evaluateAttributeExpressions(original).getValue();
-        final String footer = context.getProperty(FOOTER).evaluateAttributeExpressions(original).getValue();
-        final String workDir = context.getProperty(WORK_DIR).evaluateAttributeExpressions(original).getValue();
+        final String header = settings.evaluate(context, HEADER, original).getValue();
+        final String footer = settings.evaluate(context, FOOTER, original).getValue();
+        final boolean wrapInAncestors = settings.wrapInAncestors;
+        final String workDir = settings.evaluate(context, WORK_DIR, original).getValue();
         final ComponentLog logger = getLogger();
 
-        final List<FlowFile> splits = new ArrayList<>();
-        final String fragmentIdentifier = UUID.randomUUID().toString();
-        final AtomicInteger numberOfRecords = new AtomicInteger(0);
+        final StateManager stateManager = context.getStateManager();
+        final String originalId = original.getAttribute(CoreAttributes.UUID.key());
+        final boolean checkpointBatches = settings.checkpointBatches;
+        final Map<String, String> resumed = checkpointBatches ? loadCheckpoint(stateManager, originalId) : null;
+        final Checkpoint resumeFrom = resumed == null ? null : Checkpoint.parse(resumed.get(CHECKPOINT_KEY));
+        final String fragmentIdentifier = resumed == null ? UUID.randomUUID().toString() : resumed.get(FRAGMENT_IDENTIFIER);
         final AtomicBoolean failed = new AtomicBoolean(false);
+        Relationship failure = REL_FAILURE;
+        final long maxElementSize = settings.maxElementSize;
+        final SplitEngine engine = settings.engine;
+        final int queueSize = settings.queueSize;
+        final int rangeSize = settings.rangeSize;
+        final ExecutorService writers = this.writers;
+        final XMLInputFactory2 xmlInputFactory = this.xmlInputFactory;
+        final XMLOutputFactory2 xmlOutputFactory = this.xmlOutputFactory;
+        final ElementPath elementPath = this.elementPath;
+        final PartitionKey partitionKey = this.partitionKey;
+        final PartitionKey manifestKey = this.manifestKey;
+        final XMLValidationSchema validationSchema = this.schema;
+        final AtomicReference<String> trailingProblem = new AtomicReference<>();
+        final boolean manifest = settings.manifest;
+        final int maxOpenPartitions = settings.maxOpenPartitions;
+        final String inputCompression = settings.inputCompression;
+        final Compression outputCompression = settings.outputCompression;
+        final int compressionLevel = settings.compressionLevel;
+        final boolean direct = settings.direct;
+        final int commitBatchSize = settings.commitBatchSize;
+        final SplitEmitter splits = commitBatchSize > 0
+                ? new SplitEmitter(sessionFactory.createSession(), original, fragmentIdentifier, commitBatchSize, outputCompression.getMimeType())
+                : new SplitEmitter(session, original, fragmentIdentifier, 0, outputCompression.getMimeType());
+        final RecordSetWriterFactory recordWriterFactory = settings.recordWriterFactory;
+        final AtomicReference<RecordSchema> schema = new AtomicReference<>();
+        final AtomicReference<SplitMetrics> metrics = new AtomicReference<>();
+        if (resumed != null) {
+            splits.count = Integer.parseInt(resumed.get(FRAGMENT_INDEX));
+            logger.info("Resuming the split of {} at fragment.index {} after {} elements",
+                    new Object[]{original, splits.count, resumeFrom.getElements()});
+        }
         List<Path> splitted=new LinkedList<Path>();
-        session.read(original, rawIn -> {
-            try (final InputStream in = new BufferedInputStream(rawIn)) {
-                String realWorkDir = workDir==null ? System.getProperty("java.io.tmpdir") : workDir;
-                final XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(FileSystems.getDefault().getPath(realWorkDir), in, depth, count, header,footer);
-                final List<File> results = splitter.split();
-                for(File f: results) {
-                    splitted.add(f.toPath());
+        try {
+            if (recordWriterFactory != null) {
+                session.read(original, rawIn -> {
+                    try (final InputStream in = decompress(new BufferedInputStream(rawIn), inputCompression)) {
+                        schema.set(recordWriterFactory.getSchema(original, in));
+                    } catch (SchemaNotFoundException e) {
+                        throw new ProcessException(e);
+                    }
+                });
+            }
+            session.read(original, rawIn -> {
+                try (final InputStream in = decompress(new BufferedInputStream(rawIn), inputCompression)) {
+                    if (direct) {
+                        try (final XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(xmlInputFactory, xmlOutputFactory, null, in, depth, count, header, footer)) {
+                            splitter.setEngine((checkpointBatches || manifest || validationSchema != null) && engine == SplitEngine.EVENT ? SplitEngine.CURSOR : engine);
+                            splitter.setMaxSplitSize(maxSplitSize);
+                            splitter.setMaxElementSize(maxElementSize);
+                            splitter.setWrapInAncestors(wrapInAncestors);
+                            splitter.setElementPath(elementPath);
+                            splitter.setOutputCompression(outputCompression, compressionLevel);
+                            if (manifest) {
+                                splitter.setChunkKey(manifestKey);
+                                splits.manifest = new Manifest(splitter::getLastChunk);
+                            }
+                            if (checkpointBatches) {
+                                splitter.setCheckpoints(true);
+                                if (resumeFrom != null) {
+                                    splitter.resumeFrom(resumeFrom);
+                                }
+                                splits.committed = () -> {
+                                    final Checkpoint checkpoint = splitter.getCheckpoint();
+                                    if (checkpoint != null) {
+                                        final Map<String, String> values = new HashMap<>();
+                                        values.put(FRAGMENT_IDENTIFIER, fragmentIdentifier);
+                                        values.put(FRAGMENT_INDEX, Integer.toString(splits.count));
+                                        values.put(CHECKPOINT_KEY, checkpoint.toString());
+                                        saveCheckpoint(stateManager, Collections.singletonList(originalId), values);
+                                    }
+                                };
+                            }
+                            if (recordWriterFactory != null) {
+                                splitter.setEngine(engine == SplitEngine.EVENT ? SplitEngine.CURSOR : engine);
+                                while (splitter.hasNext()) {
+                                    final Map<String, String> recordAttributes = new HashMap<>();
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out ->
+                                            recordAttributes.putAll(writeRecords(splitter, recordWriterFactory, schema.get(), original, out)));
+                                    split = splits.session.putAllAttributes(split, recordAttributes);
+                                    splits.add(split);
+                                }
+                            } else if (partitionKey != null) {
+                                splitter.setEngine(engine == SplitEngine.EVENT ? SplitEngine.CURSOR : engine);
+                                splitter.setPartitionKey(partitionKey);
+                                splitter.splitPartitioned(maxOpenPartitions, (key, chunk, elements) -> {
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out -> out.write(chunk));
+                                    split = splits.session.putAttribute(split, PARTITION_KEY_ATTRIBUTE, key);
+                                    splits.add(split);
+                                });
+                            } else if (validationSchema != null) {
+                                splitter.setSchema(validationSchema);
+                                splitter.splitValidated((chunk, elements) -> {
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out -> out.write(chunk));
+                                    splits.add(split);
+                                }, (chunk, elements, problem) -> {
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out -> out.write(chunk));
+                                    split = splits.session.putAttribute(split, VALIDATION_ERROR, problem);
+                                    splits.addInvalid(split, elements);
+                                });
+                                trailingProblem.set(splitter.getTrailingProblem());
+                            } else if (writers != null && rangeSize > 0) {
+                                splitter.splitRanges(writers, rangeSize, queueSize, (chunk, elements) -> {
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out -> out.write(chunk));
+                                    splits.add(split);
+                                });
+                            } else if (writers != null) {
+                                splitter.splitParallel(writers, queueSize, (chunk, elements) -> {
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out -> out.write(chunk));
+                                    splits.add(split);
+                                });
+                            } else {
+                                while (splitter.hasNext()) {
+                                    FlowFile split = splits.create();
+                                    split = splits.session.write(split, out -> splitter.writeNext(out));
+                                    splits.add(split);
+                                }
+                            }
+                            metrics.set(splitter.getMetrics());
+                        }
+                    } else {
+                        String realWorkDir = workDir == null ? System.getProperty("java.io.tmpdir") : workDir;
+                        final XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(xmlInputFactory, xmlOutputFactory,
+                                FileSystems.getDefault().getPath(realWorkDir), in, depth, count, header, footer);
+                        splitter.setEngine(engine);
+                        splitter.setMaxSplitSize(maxSplitSize);
+                        splitter.setMaxElementSize(maxElementSize);
+                        splitter.setWrapInAncestors(wrapInAncestors);
+                        splitter.setElementPath(elementPath);
+                        splitter.setOutputCompression(outputCompression, compressionLevel);
+                        final List<File> results = splitter.split();
+                        metrics.set(splitter.getMetrics());
+                        for (File f : results) {
+                            splitted.add(f.toPath());
+                        }
+                    }
                 }
+            });
+        } catch (ProcessException e) {
+            final LimitExceededException limit = limitExceeded(e);
+            if (limit != null) {
+                logger.warn("Routing {} to oversized: {}", new Object[]{original, limit.getMessage()});
+                failure = REL_OVERSIZED;
+            } else {
+                logger.error("Failed to split {}", new Object[]{original, e});
             }
-        });
+            failed.set(true);
+        } catch (RuntimeException e) {
+            // the original is rolled back by the caller, splits of the current batch have to go with it
+            splits.discard();
+            throw e;
+        }
         for(Path splitFile: splitted) {
-            FlowFile n_split = session.create(original);
+            FlowFile n_split = splits.create();
             FlowFile split = session.importFrom(splitFile, false, n_split);
-            split = session.putAttribute(split, FRAGMENT_IDENTIFIER, fragmentIdentifier);
-            split = session.putAttribute(split, FRAGMENT_INDEX, Integer.toString(numberOfRecords.getAndIncrement()));
-            split = session.putAttribute(split, SEGMENT_ORIGINAL_FILENAME, split.getAttribute(CoreAttributes.FILENAME.key()));
             splits.add(split);
         }
         if (failed.get()) {
-            session.transfer(original, REL_FAILURE);
-            session.remove(splits);
+            final int committed = splits.count - splits.pending.size();
+            FlowFile failedOriginal = original;
+            if (committed > 0) {
+                logger.warn("{} splits of {} were committed before it failed", new Object[]{committed, original});
+                // a replay of the original can skip the splits that are downstream already
+                failedOriginal = session.putAttribute(failedOriginal, FRAGMENT_IDENTIFIER, fragmentIdentifier);
+                failedOriginal = session.putAttribute(failedOriginal, FRAGMENT_INDEX, Integer.toString(committed));
+            }
+            session.transfer(failedOriginal, failure);
+            splits.discard();
         } else {
-            splits.forEach((split) -> {
-                split = session.putAttribute(split, FRAGMENT_COUNT, Integer.toString(numberOfRecords.get()));
-                session.transfer(split, REL_SPLIT);
-            });
+            splits.finish();
+            FlowFile originalToTransfer = original;
+            if (trailingProblem.get() != null) {
+                logger.warn("{} failed validation after its last split element: {}", new Object[]{original, trailingProblem.get()});
+                originalToTransfer = session.putAttribute(originalToTransfer, VALIDATION_ERROR, trailingProblem.get());
+            }
+            if (commitBatchSize > 0) {
+                // the splits are gone already, the count for reassembling them travels with the original
+                originalToTransfer = session.putAttribute(originalToTransfer, FRAGMENT_IDENTIFIER, fragmentIdentifier);
+                originalToTransfer = session.putAttribute(originalToTransfer, FRAGMENT_COUNT, Integer.toString(splits.count));
+            }
+            final String details = describe(session, original, splits, metrics.get());
+            if (splits.manifest != null) {
+                transferManifest(session, original, fragmentIdentifier, splits);
+            }
+            session.getProvenanceReporter().route(originalToTransfer, REL_ORIGINAL, details);
+            session.transfer(originalToTransfer, REL_ORIGINAL);
+            logger.info("Split {} into {} FlowFiles, {}", new Object[]{original, splits.count, details});
+        }
+        // the checkpoint of a failed original is kept, its committed splits are downstream and a retry resumes after them
+        return checkpointBatches && !failed.get() ? originalId : null;
+    }
+
+    /**
+     * The checkpoint state of the original, null if it has none.
+     */
+    private synchronized Map<String, String> loadCheckpoint(final StateManager stateManager, final String originalId) {
+        try {
+            final Map<String, String> state = stateManager.getState(Scope.LOCAL).toMap();
+            final String checkpoint = state.get(originalId + '.' + CHECKPOINT_KEY);
+            if (checkpoint == null) {
+                return null;
+            }
+            final Map<String, String> values = new HashMap<>();
+            for (String key : new String[]{FRAGMENT_IDENTIFIER, FRAGMENT_INDEX, CHECKPOINT_KEY}) {
+                values.put(key, state.get(originalId + '.' + key));
+            }
+            return values;
+        } catch (IOException e) {
+            getLogger().warn("Failed to read the checkpoint of {}, splitting it from the start", new Object[]{originalId, e});
+            return null;
+        }
+    }
+
+    /**
+     * Replace the checkpoint state of the originals, null values remove it. Concurrent tasks share the state map,
+     * so it is updated under the processor lock.
+     */
+    private synchronized void saveCheckpoint(final StateManager stateManager, final List<String> originalIds, final Map<String, String> values) {
+        try {
+            final Map<String, String> state = new HashMap<>(stateManager.getState(Scope.LOCAL).toMap());
+            boolean changed = false;
+            for (String originalId : originalIds) {
+                for (String key : new String[]{FRAGMENT_IDENTIFIER, FRAGMENT_INDEX, CHECKPOINT_KEY}) {
+                    final String value = values == null ? null : values.get(key);
+                    changed |= value == null ? state.remove(originalId + '.' + key) != null
+                            : !value.equals(state.put(originalId + '.' + key, value));
+                }
+            }
+            if (changed) {
+                stateManager.setState(state, Scope.LOCAL);
+            }
+        } catch (IOException e) {
+            // a lost checkpoint only means the retry starts further back
+            getLogger().warn("Failed to update the checkpoint of {}", new Object[]{originalIds, e});
+        }
+    }
+
+    /**
+     * The broken limit a split failed on, null if it failed for another reason.
+     */
+    private static LimitExceededException limitExceeded(final Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LimitExceededException) {
+                return (LimitExceededException) cause;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decompressing view of the FlowFile content, the buffered stream lets Detect peek at the first bytes.
+     */
+    private static InputStream decompress(final BufferedInputStream in, final String inputCompression) throws IOException {
+        final Compression compression = COMPRESSION_DETECT.getValue().equals(inputCompression)
+                ? Compression.detect(in) : Compression.valueOf(inputCompression);
+        return compression.decompress(in);
+    }
+
+    /**
+     * Adds the split to the processor counters and describes it for provenance, the maxima only go to the description.
+     */
+    private String describe(final ProcessSession session, final FlowFile original, final SplitEmitter splits, final SplitMetrics metrics) {
+        session.adjustCounter("Bytes In", original.getSize(), false);
+        session.adjustCounter("Bytes Out", splits.bytes, false);
+        session.adjustCounter("Chunks", splits.count, false);
+        if (metrics == null) {
+            return splits.bytes + " bytes out";
+        }
+        session.adjustCounter("Elements Scanned", metrics.getElementsScanned(), false);
+        session.adjustCounter("Elements Emitted", metrics.getElementsEmitted(), false);
+        session.adjustCounter("Parse Time (ms)", TimeUnit.NANOSECONDS.toMillis(metrics.getParseNanos()), false);
+        session.adjustCounter("Write Time (ms)", TimeUnit.NANOSECONDS.toMillis(metrics.getWriteNanos()), false);
+        session.adjustCounter("IO Time (ms)", TimeUnit.NANOSECONDS.toMillis(metrics.getIoNanos()), false);
+        return splits.bytes + " bytes out, " + metrics;
+    }
+
+    private static void transferManifest(final ProcessSession session, final FlowFile original, final String fragmentIdentifier,
+                                         final SplitEmitter splits) {
+        final byte[] json = splits.manifest.toBytes();
+        FlowFile manifest = session.create(original);
+        manifest = session.write(manifest, out -> out.write(json));
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put(FRAGMENT_IDENTIFIER, fragmentIdentifier);
+        attributes.put(FRAGMENT_COUNT, Integer.toString(splits.count));
+        attributes.put(SEGMENT_ORIGINAL_FILENAME, original.getAttribute(CoreAttributes.FILENAME.key()));
+        attributes.put(CoreAttributes.FILENAME.key(), original.getAttribute(CoreAttributes.FILENAME.key()) + ".manifest.json");
+        attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+        manifest = session.putAllAttributes(manifest, attributes);
+        session.transfer(manifest, REL_MANIFEST);
+    }
+
+    private Map<String, String> writeRecords(final XMLSplitByCountUtil splitter, final RecordSetWriterFactory recordWriterFactory,
+                                             final RecordSchema schema, final FlowFile original, final OutputStream out) throws IOException {
+        try (final RecordSetWriter writer = recordWriterFactory.createWriter(getLogger(), schema, original, out)) {
+            writer.beginRecordSet();
+            splitter.writeNextRecords(element -> writer.write(toRecord(element, schema)));
+            final WriteResult result = writer.finishRecordSet();
+            final Map<String, String> attributes = new HashMap<>(result.getAttributes());
+            attributes.put("record.count", Integer.toString(result.getRecordCount()));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+            return attributes;
+        } catch (SchemaNotFoundException e) {
+            throw new ProcessException(e);
+        }
+    }
+
+    /**
+     * Fields of the schema are looked up by name in the mapped element, anything the schema does not name is dropped.
+     */
+    @SuppressWarnings("unchecked")
+    static Record toRecord(final Map<String, Object> element, final RecordSchema schema) {
+        final Map<String, Object> values = new HashMap<>();
+        for (final RecordField field : schema.getFields()) {
+            final Object value = element.get(field.getFieldName());
+            if (value != null) {
+                values.put(field.getFieldName(), toValue(value, field.getDataType()));
+            }
+        }
+        return new MapRecord(schema, values);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object toValue(Object value, final DataType dataType) {
+        final RecordFieldType fieldType = dataType.getFieldType();
+        if (fieldType == RecordFieldType.ARRAY) {
+            final DataType elementType = ((ArrayDataType) dataType).getElementType();
+            final List<Object> list = value instanceof List ? (List<Object>) value : Collections.singletonList(value);
+            final Object[] array = new Object[list.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i) == null ? null : toValue(list.get(i), elementType);
+            }
+            return array;
+        }
+        if (value instanceof List) {
+            // a repeated element where the schema expects one, keep the first
+            value = ((List<Object>) value).get(0);
+            if (value == null) {
+                return null;
+            }
+        }
+        if (fieldType == RecordFieldType.RECORD) {
+            final Map<String, Object> fields = value instanceof Map ? (Map<String, Object>) value
+                    : Collections.singletonMap(XMLSplitByCountUtil.TEXT_FIELD, value);
+            return toRecord(fields, ((RecordDataType) dataType).getChildSchema());
+        }
+        if (value instanceof Map && fieldType != RecordFieldType.MAP && fieldType != RecordFieldType.CHOICE) {
+            // an element with attributes where the schema expects a simple value, keep its text
+            return ((Map<String, Object>) value).get(XMLSplitByCountUtil.TEXT_FIELD);
+        }
+        return value;
+    }
 
-            //final FlowFile originalToTransfer = copyAttributesToOriginal(session, original, fragmentIdentifier, numberOfRecords.get());
-            session.transfer(original, REL_ORIGINAL);
-            logger.info("Split {} into {} FlowFiles", new Object[]{original, splits.size()});
+    /**
+     * Property values read once when scheduled instead of for every FlowFile. Properties with expression language
+     * are left out of {@link #constants} and evaluated against each FlowFile.
+     */
+    private static final class Settings {
+        private final Map<PropertyDescriptor, PropertyValue> constants = new HashMap<>();
+        private final boolean wrapInAncestors;
+        private final SplitEngine engine;
+        private final int queueSize;
+        private final int rangeSize;
+        private final long maxElementSize;
+        private final int maxOpenPartitions;
+        private final String inputCompression;
+        private final Compression outputCompression;
+        private final int compressionLevel;
+        private final boolean direct;
+        private final int flowFileBatchSize;
+        private final int commitBatchSize;
+        private final boolean checkpointBatches;
+        private final boolean manifest;
+        private final RecordSetWriterFactory recordWriterFactory;
+
+        private Settings(final ProcessContext context) {
+            for (PropertyDescriptor descriptor : new PropertyDescriptor[]{SPLIT_DEPTH, SPLIT_COUNT, MAX_SPLIT_SIZE, HEADER, FOOTER, WORK_DIR}) {
+                if (!context.isExpressionLanguagePresent(descriptor)) {
+                    constants.put(descriptor, context.getProperty(descriptor).evaluateAttributeExpressions());
+                }
+            }
+            wrapInAncestors = context.getProperty(WRAP_IN_ANCESTORS).asBoolean();
+            engine = SplitEngine.valueOf(context.getProperty(SPLIT_ENGINE).getValue());
+            queueSize = context.getProperty(WRITER_QUEUE_SIZE).asInteger();
+            final PropertyValue range = context.getProperty(SPECULATIVE_RANGE_SIZE);
+            rangeSize = range.isSet() ? (int) Math.min(range.asDataSize(DataUnit.B).longValue(), Integer.MAX_VALUE / 2) : 0;
+            final PropertyValue element = context.getProperty(MAX_ELEMENT_SIZE);
+            maxElementSize = element.isSet() ? element.asDataSize(DataUnit.B).longValue() : 0;
+            maxOpenPartitions = context.getProperty(MAX_OPEN_PARTITIONS).asInteger();
+            inputCompression = context.getProperty(INPUT_COMPRESSION).getValue();
+            outputCompression = Compression.valueOf(context.getProperty(OUTPUT_COMPRESSION).getValue());
+            compressionLevel = context.getProperty(OUTPUT_COMPRESSION_LEVEL).asInteger();
+            direct = OUTPUT_CONTENT_REPOSITORY.getValue().equals(context.getProperty(OUTPUT_STRATEGY).getValue());
+            flowFileBatchSize = context.getProperty(FLOWFILE_BATCH_SIZE).asInteger();
+            commitBatchSize = direct ? context.getProperty(COMMIT_BATCH_SIZE).asInteger() : 0;
+            checkpointBatches = commitBatchSize > 0 && context.getProperty(CHECKPOINT_BATCHES).asBoolean();
+            manifest = direct && context.getProperty(WRITE_MANIFEST).asBoolean();
+            recordWriterFactory = direct ? context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class) : null;
         }
 
+        private PropertyValue evaluate(final ProcessContext context, final PropertyDescriptor descriptor, final FlowFile flowFile) {
+            final PropertyValue constant = constants.get(descriptor);
+            return constant != null ? constant : context.getProperty(descriptor).evaluateAttributeExpressions(flowFile);
+        }
+    }
+
+    /**
+     * Creates the splits of one original and stamps their fragment attributes. Without a batch size the splits are
+     * children of the original in its session and go out with it. With a batch size they live in their own session,
+     * which is committed every batchSize splits, so they cannot be children of the original.
+     */
+    private static class SplitEmitter {
+        private final ProcessSession session;
+        private final FlowFile original;
+        private final String fragmentIdentifier;
+        private final int batchSize;
+        private final Map<String, String> inherited;
+        // of the compressed splits, null to leave mime.type as it is
+        private final String mimeType;
+        private final List<FlowFile> pending = new ArrayList<>();
+        // splits of invalid elements, transferred and discarded together with the pending splits
+        private final List<FlowFile> invalid = new ArrayList<>();
+        // called after every batch commit
+        private Runnable committed;
+        // lists the splits as they are added, null without Write Manifest
+        private Manifest manifest;
+        private int count;
+        private long bytes;
+
+        private SplitEmitter(ProcessSession session, FlowFile original, String fragmentIdentifier, int batchSize, String mimeType) {
+            this.session = session;
+            this.original = original;
+            this.fragmentIdentifier = fragmentIdentifier;
+            this.batchSize = batchSize;
+            this.inherited = new HashMap<>(original.getAttributes());
+            this.inherited.remove(CoreAttributes.UUID.key());
+            this.mimeType = mimeType;
+        }
+
+        private FlowFile create() {
+            return batchSize > 0 ? session.putAllAttributes(session.create(), inherited) : session.create(original);
+        }
+
+        private void add(FlowFile split) {
+            if (manifest != null) {
+                manifest.add(count);
+            }
+            split = session.putAttribute(split, FRAGMENT_IDENTIFIER, fragmentIdentifier);
+            split = session.putAttribute(split, FRAGMENT_INDEX, Integer.toString(count++));
+            split = session.putAttribute(split, SEGMENT_ORIGINAL_FILENAME, original.getAttribute(CoreAttributes.FILENAME.key()));
+            if (mimeType != null) {
+                split = session.putAttribute(split, CoreAttributes.MIME_TYPE.key(), mimeType);
+            }
+            bytes += split.getSize();
+            pending.add(split);
+            if (batchSize > 0 && pending.size() >= batchSize) {
+                commit();
+            }
+        }
+
+        /**
+         * Add a split of invalid elements, it has no fragment.index and does not count towards fragment.count.
+         */
+        private void addInvalid(FlowFile split, int elements) {
+            split = session.putAttribute(split, SEGMENT_ORIGINAL_FILENAME, original.getAttribute(CoreAttributes.FILENAME.key()));
+            if (mimeType != null) {
+                split = session.putAttribute(split, CoreAttributes.MIME_TYPE.key(), mimeType);
+            }
+            session.adjustCounter("Invalid Elements", elements, false);
+            invalid.add(split);
+        }
+
+        private void commit() {
+            session.transfer(pending, REL_SPLIT);
+            session.transfer(invalid, REL_INVALID);
+            session.commit();
+            pending.clear();
+            invalid.clear();
+            if (committed != null) {
+                committed.run();
+            }
+        }
+
+        private void finish() {
+            if (batchSize > 0) {
+                commit();
+            } else {
+                for (FlowFile split : pending) {
+                    split = session.putAttribute(split, FRAGMENT_COUNT, Integer.toString(count));
+                    session.transfer(split, REL_SPLIT);
+                }
+                session.transfer(invalid, REL_INVALID);
+            }
+        }
+
+        private void discard() {
+            if (batchSize > 0) {
+                session.rollback();
+            } else {
+                session.remove(pending);
+                session.remove(invalid);
+            }
+        }
+    }
+
+    /**
+     * The manifest of one original, a json array with the {@link ChunkIndex} of every split on a line of its own.
+     */
+    private static class Manifest {
+        private final StringBuilder json = new StringBuilder("[");
+        // index of the chunk the split being added holds
+        private final Supplier<ChunkIndex> lastChunk;
+
+        private Manifest(Supplier<ChunkIndex> lastChunk) {
+            this.lastChunk = lastChunk;
+        }
+
+        private void add(int index) {
+            final ChunkIndex chunk = lastChunk.get();
+            json.append(json.length() == 1 ? "\n" : ",\n")
+                    .append("{\"fragment.index\":").append(index)
+                    .append(",\"start\":").append(chunk.getStart())
+                    .append(",\"end\":").append(chunk.getEnd())
+                    .append(",\"elements\":").append(chunk.getElements());
+            if (chunk.getFirstKey() != null) {
+                appendString(json.append(",\"first.key\":"), chunk.getFirstKey());
+                appendString(json.append(",\"last.key\":"), chunk.getLastKey());
+            }
+            json.append('}');
+        }
+
+        private byte[] toBytes() {
+            return (json + "\n]").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void appendString(StringBuilder json, String value) {
+            json.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': json.append("\\\""); break;
+                    case '\\': json.append("\\\\"); break;
+                    case '\n': json.append("\\n"); break;
+                    case '\r': json.append("\\r"); break;
+                    case '\t': json.append("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            json.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            json.append(c);
+                        }
+                }
+            }
+            json.append('"');
+        }
     }
 }
@@ -0,0 +1,22 @@
+package com.entertainment.nifi.processor.util;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Elements of one chunk taken off the parser so that they can be serialized later on another thread.
+ */
+abstract class CapturedChunk {
+
+    /**
+     * Take the element the source is positioned on, runs on the parsing thread.
+     * @return approximate size of the element in bytes
+     */
+    abstract long capture() throws XMLStreamException;
+
+    /**
+     * Serialize the captured elements, runs on a worker thread.
+     */
+    abstract void writeTo(OutputStream outputStream) throws XMLStreamException, IOException;
+}
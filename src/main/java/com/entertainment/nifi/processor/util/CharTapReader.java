@@ -0,0 +1,95 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+/**
+ * Reader that keeps every char handed to the parser until it is released, so ranges the parser
+ * reported by char offset can be copied out verbatim.
+ */
+class CharTapReader extends Reader {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // buffer of the last tap recycled on this thread, many small documents in a row would allocate one each
+    private static final ThreadLocal<SoftReference<char[]>> RECYCLED = new ThreadLocal<>();
+
+    private final Reader in;
+    private char[] buffer;
+    // absolute char offset of buffer[0]
+    private long bufferStart;
+    private int length;
+
+    CharTapReader(Reader in) {
+        this.in = in;
+        final SoftReference<char[]> recycled = RECYCLED.get();
+        this.buffer = recycled == null ? null : recycled.get();
+        if (buffer == null) {
+            buffer = new char[BUFFER_SIZE];
+        } else {
+            RECYCLED.remove();
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int read = in.read(cbuf, off, len);
+        if (read > 0) {
+            if (length + read > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + read));
+            }
+            System.arraycopy(cbuf, off, buffer, length, read);
+            length += read;
+        }
+        return read;
+    }
+
+    /**
+     * @return number of chars read but not released yet
+     */
+    int retained() {
+        return length;
+    }
+
+    /**
+     * Drop everything before the given absolute offset.
+     */
+    void release(long offset) {
+        int n = (int) (offset - bufferStart);
+        if (n <= 0) {
+            return;
+        }
+        length -= n;
+        System.arraycopy(buffer, n, buffer, 0, length);
+        bufferStart = offset;
+    }
+
+    /**
+     * Write everything retained before the given absolute offset and release it.
+     */
+    void writeTo(Writer writer, long offset) throws IOException {
+        int n = (int) (offset - bufferStart);
+        if (n <= 0) {
+            return;
+        }
+        writer.write(buffer, 0, n);
+        release(offset);
+    }
+
+    /**
+     * Hand the buffer to the next tap on this thread, unless it grew for a large element. The tap cannot be used after.
+     */
+    void recycle() {
+        if (buffer != null && buffer.length == BUFFER_SIZE) {
+            RECYCLED.set(new SoftReference<>(buffer));
+        }
+        buffer = null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
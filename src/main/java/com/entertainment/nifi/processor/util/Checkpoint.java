@@ -0,0 +1,85 @@
+package com.entertainment.nifi.processor.util;
+
+/**
+ * Where a split can be resumed: the offset of the next split element in the chars of the input, after a byte order
+ * mark, and the xml declaration and start tags of its ancestors to parse the rest of the input in. The parser only reports char offsets,
+ * so the last resumed position is kept in both chars and bytes, a later resume skips the bytes up to it and only
+ * decodes the chars after it.
+ */
+public final class Checkpoint {
+
+    private final long offset;
+    private final long baseChars;
+    private final long baseBytes;
+    private final long elements;
+    private final String version;
+    // yes or no, empty if the declaration has no standalone
+    private final String standalone;
+    private final String ancestors;
+
+    Checkpoint(long offset, long baseChars, long baseBytes, long elements, String version, String standalone, String ancestors) {
+        this.offset = offset;
+        this.baseChars = baseChars;
+        this.baseBytes = baseBytes;
+        this.elements = elements;
+        this.version = version;
+        this.standalone = standalone == null ? "" : standalone;
+        this.ancestors = ancestors;
+    }
+
+    /**
+     * Char offset of the next split element.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Number of split elements before the offset.
+     */
+    public long getElements() {
+        return elements;
+    }
+
+    long getBaseChars() {
+        return baseChars;
+    }
+
+    long getBaseBytes() {
+        return baseBytes;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    String getStandalone() {
+        return standalone;
+    }
+
+    String getAncestors() {
+        return ancestors;
+    }
+
+    /**
+     * Parse a checkpoint written by {@link #toString()}.
+     * @throws IllegalArgumentException if the text is not a checkpoint
+     */
+    public static Checkpoint parse(String text) {
+        final String[] fields = text.split(";", 7);
+        if (fields.length != 7) {
+            throw new IllegalArgumentException("Not a checkpoint: " + text);
+        }
+        try {
+            return new Checkpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                    Long.parseLong(fields[3]), fields[4], fields[5], fields[6]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a checkpoint: " + text, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return offset + ";" + baseChars + ";" + baseBytes + ";" + elements + ";" + version + ";" + standalone + ";" + ancestors;
+    }
+}
@@ -0,0 +1,11 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+
+/**
+ * Receives the chunks of a parallel split, in document order and on the thread that started the split.
+ */
+public interface ChunkConsumer {
+
+    void accept(byte[] chunk, int elementCount) throws IOException;
+}
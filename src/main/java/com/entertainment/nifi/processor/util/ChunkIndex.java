@@ -0,0 +1,54 @@
+package com.entertainment.nifi.processor.util;
+
+/**
+ * Where a chunk was split from: the char range its elements span in the input, after a byte order mark, their count
+ * and the first and last value of the chunk key among them. See {@link XMLSplitByCountUtil#getLastChunk()}.
+ */
+public final class ChunkIndex {
+
+    private final long start;
+    private final long end;
+    private final int elements;
+    private final String firstKey;
+    private final String lastKey;
+
+    ChunkIndex(long start, long end, int elements, String firstKey, String lastKey) {
+        this.start = start;
+        this.end = end;
+        this.elements = elements;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+    }
+
+    /**
+     * Char offset of the start tag of the first element, -1 if the engine does not report offsets.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Char offset just after the end tag of the last element, -1 if the engine does not report offsets.
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public int getElements() {
+        return elements;
+    }
+
+    /**
+     * Chunk key of the first element, empty if it has none, null without a chunk key.
+     */
+    public String getFirstKey() {
+        return firstKey;
+    }
+
+    /**
+     * Chunk key of the last element, empty if it has none, null without a chunk key.
+     */
+    public String getLastKey() {
+        return lastKey;
+    }
+}
@@ -0,0 +1,57 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes of the chunk being written. Flushes are not passed down so engines can flush
+ * their writers after every element without flushing the target each time. One instance is
+ * reused for all chunks of a document, it also times the writes to the target.
+ */
+class ChunkOutputStream extends OutputStream {
+
+    private OutputStream out;
+    private long count;
+    // time spent in the target stream, over all chunks
+    private long nanos;
+
+    /**
+     * Start a new chunk written to the given stream.
+     */
+    void reset(OutputStream out) {
+        this.out = out;
+        this.count = 0;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        out.write(b);
+        nanos += System.nanoTime() - start;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        out.write(b, off, len);
+        nanos += System.nanoTime() - start;
+        count += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,130 @@
+package com.entertainment.nifi.processor.util;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression formats the splitter reads and writes inline, instead of a CompressContent before and after it.
+ */
+public enum Compression {
+    NONE(null, null),
+    GZIP("application/gzip", new byte[]{0x1f, (byte) 0x8b}),
+    BZIP2("application/x-bzip2", new byte[]{'B', 'Z', 'h'}),
+    XZ("application/x-xz", new byte[]{(byte) 0xfd, '7', 'z', 'X', 'Z', 0});
+
+    private static final byte[] ZSTD_MAGIC = {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd};
+    private static final int MAGIC_LENGTH = 6;
+
+    private final String mimeType;
+    private final byte[] magic;
+
+    Compression(String mimeType, byte[] magic) {
+        this.mimeType = mimeType;
+        this.magic = magic;
+    }
+
+    /**
+     * Mime type of the compressed content, null for {@link #NONE}.
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Detect the format from the magic bytes at the start of the stream, anything unknown is taken as uncompressed.
+     * The stream must support mark, it is reset to where it was.
+     */
+    public static Compression detect(InputStream in) throws IOException {
+        final byte[] head = new byte[MAGIC_LENGTH];
+        in.mark(MAGIC_LENGTH);
+        int length = 0;
+        try {
+            int read;
+            while (length < head.length && (read = in.read(head, length, head.length - length)) > 0) {
+                length += read;
+            }
+        } finally {
+            in.reset();
+        }
+        if (startsWith(head, length, ZSTD_MAGIC)) {
+            throw new IOException("Zstandard compressed input is not supported");
+        }
+        for (Compression compression : values()) {
+            if (compression.magic != null && startsWith(head, length, compression.magic)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic) {
+        if (length < magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decompressing view of the given stream, closing it closes the given stream.
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                // reads concatenated members as one stream, as gzip does
+                return new GZIPInputStream(in, 65536);
+            case BZIP2:
+                return new BZip2CompressorInputStream(in, true);
+            case XZ:
+                return new XZCompressorInputStream(in, true);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Compressing view of the given stream at a level from 0 to 9. Closing it finishes the compressed data but
+     * leaves the given stream open.
+     */
+    public OutputStream compress(OutputStream out, int level) throws IOException {
+        final OutputStream target = new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(target, 65536) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            case BZIP2:
+                return new BZip2CompressorOutputStream(target, Math.max(BZip2CompressorOutputStream.MIN_BLOCKSIZE,
+                        Math.min(level, BZip2CompressorOutputStream.MAX_BLOCKSIZE)));
+            case XZ:
+                return new XZCompressorOutputStream(target, level);
+            default:
+                return target;
+        }
+    }
+}
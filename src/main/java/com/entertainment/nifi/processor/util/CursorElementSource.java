@@ -0,0 +1,172 @@
+package com.entertainment.nifi.processor.util;
+
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLOutputFactory2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.XMLStreamWriter2;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * {@link SplitEngine#CURSOR} engine. Split elements are passed event by event from the
+ * XMLStreamReader2 to an XMLStreamWriter2 with copyEventFromReader, so no event objects are created.
+ * One writer is used for the whole document, the splitter retargets its stream from chunk to chunk.
+ */
+class CursorElementSource extends ElementSource {
+
+    private final XMLStreamReader2 reader;
+    private final XMLOutputFactory2 xmlOutputFactory;
+    private OutputStream target;
+    private XMLStreamWriter2 writer;
+    // reader is positioned on the start tag of a split element that was not copied yet
+    private boolean pending;
+
+    CursorElementSource(XMLInputFactory2 xmlInputFactory, XMLOutputFactory2 xmlOutputFactory, InputStream inputStream, int splitDepth) throws XMLStreamException {
+        super(splitDepth);
+        this.reader = (XMLStreamReader2) xmlInputFactory.createXMLStreamReader(inputStream);
+        this.xmlOutputFactory = xmlOutputFactory;
+        declaration(reader.getVersion(), reader.standaloneSet(), reader.isStandalone());
+    }
+
+    @Override
+    boolean next() throws XMLStreamException {
+        if (pending) {
+            return true;
+        }
+        while (reader.hasNext()) {
+            int eventType = reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                scanned();
+                int match = enter(reader);
+                if (match == MATCH) {
+                    matched();
+                    elementOffset = reader.getLocationInfo().getStartingCharOffset();
+                    pending = true;
+                    return true;
+                }
+                if (match == SKIP) {
+                    reader.skipElement();
+                    depth--;
+                } else if (isAncestor()) {
+                    ancestor(reader);
+                }
+            } else if (eventType == XMLStreamConstants.DTD) {
+                doctype = true;
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    void beginChunk(OutputStream outputStream) throws XMLStreamException {
+        if (writer == null || target != outputStream) {
+            writer = (XMLStreamWriter2) xmlOutputFactory.createXMLStreamWriter(outputStream);
+            target = outputStream;
+        }
+    }
+
+    @Override
+    void copy() throws XMLStreamException {
+        pending = false;
+        if (keyTracker != null) {
+            keyTracker.begin(reader);
+        }
+        long start = reader.getLocationInfo().getStartingCharOffset();
+        writer.copyEventFromReader(reader, false);
+        int level = 1;
+        int levels = 1;
+        while (level > 0) {
+            int eventType = reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                if (++level > levels) {
+                    levels = level;
+                }
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+            if (keyTracker != null) {
+                keyTracker.observe(reader, eventType, level);
+            }
+            if (maxElementSize > 0) {
+                checkSize(reader.getLocationInfo().getStartingCharOffset() - start);
+            }
+            writer.copyEventFromReader(reader, false);
+        }
+        copied(reader.getLocationInfo().getEndingCharOffset() - start, levels);
+        depth--;
+    }
+
+    @Override
+    long read(ElementConsumer consumer) throws XMLStreamException, IOException {
+        pending = false;
+        long start = reader.getLocationInfo().getStartingCharOffset();
+        Map<String, Object> element = ElementMapper.map(reader, maxElementSize);
+        long chars = reader.getLocationInfo().getEndingCharOffset() - start;
+        copied(chars, 1);
+        depth--;
+        consumer.accept(element);
+        return chars;
+    }
+
+    @Override
+    void setSchema(XMLValidationSchema schema) throws XMLStreamException {
+        reader.setValidationProblemHandler(this::problem);
+        reader.validateAgainst(schema);
+    }
+
+    @Override
+    void flush() throws XMLStreamException {
+        writer.flush();
+    }
+
+    @Override
+    void endChunk() throws XMLStreamException {
+        writer.flush();
+    }
+
+    @Override
+    CapturedChunk newCapturedChunk() {
+        return new TextCapturedChunk(StandardCharsets.UTF_8) {
+            private XMLStreamWriter2 captureWriter;
+
+            @Override
+            long capture() throws XMLStreamException {
+                if (captureWriter == null) {
+                    captureWriter = (XMLStreamWriter2) xmlOutputFactory.createXMLStreamWriter(getBuffer());
+                }
+                int before = getBuffer().size();
+                XMLStreamWriter2 chunkWriter = writer;
+                writer = captureWriter;
+                try {
+                    copy();
+                    writer.flush();
+                } finally {
+                    writer = chunkWriter;
+                }
+                return getBuffer().size() - before;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (writer != null) {
+                // closing a stax writer never closes the underlying stream
+                writer.close();
+            }
+            reader.close();
+        } catch (Exception e) {
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Receives the split elements mapped to fields, see {@link XMLSplitByCountUtil#writeNextRecords(ElementConsumer)}.
+ */
+public interface ElementConsumer {
+
+    void accept(Map<String, Object> element) throws IOException;
+}
@@ -0,0 +1,106 @@
+package com.entertainment.nifi.processor.util;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import org.codehaus.stax2.XMLStreamReader2;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps an element to fields: attributes and child elements become fields named by their local name. A child
+ * without attributes or children of its own is a String, null when empty, any other child is a nested map.
+ * Repeated children become a List. Text next to attributes or children goes to the {@link #TEXT_FIELD} field.
+ */
+final class ElementMapper {
+
+    static final String TEXT_FIELD = "value";
+
+    private ElementMapper() {
+    }
+
+    /**
+     * Map the element the reader is positioned on, leaves the reader on its end tag.
+     * @param maxChars input chars the element may span, 0 for no limit
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> map(XMLStreamReader2 reader, long maxChars) throws XMLStreamException {
+        Object value = read(reader, reader.getLocationInfo().getStartingCharOffset(), maxChars);
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
+        }
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(TEXT_FIELD, value);
+        return fields;
+    }
+
+    /**
+     * @param start char offset of the mapped element
+     */
+    private static Object read(XMLStreamReader2 reader, long start, long maxChars) throws XMLStreamException {
+        Map<String, Object> fields = null;
+        if (reader.getAttributeCount() > 0) {
+            fields = new LinkedHashMap<>();
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                fields.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+        StringBuilder text = null;
+        while (true) {
+            int eventType = reader.next();
+            if (maxChars > 0 && reader.getLocationInfo().getStartingCharOffset() - start > maxChars) {
+                // the fields read so far are dropped with the exception
+                throw ElementSource.tooLarge(maxChars);
+            }
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                if (fields == null) {
+                    fields = new LinkedHashMap<>();
+                }
+                add(fields, reader.getLocalName(), read(reader, start, maxChars));
+            } else if (eventType == XMLStreamConstants.CHARACTERS || eventType == XMLStreamConstants.CDATA
+                    || eventType == XMLStreamConstants.SPACE) {
+                if (text == null) {
+                    text = new StringBuilder();
+                }
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        if (fields == null) {
+            return text == null || text.length() == 0 ? null : text.toString();
+        }
+        if (text != null && !isWhitespace(text)) {
+            fields.put(TEXT_FIELD, text.toString().trim());
+        }
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void add(Map<String, Object> fields, String name, Object value) {
+        if (!fields.containsKey(name)) {
+            fields.put(name, value);
+            return;
+        }
+        Object existing = fields.get(name);
+        if (existing instanceof List) {
+            // values are never lists themselves, so this is the list of an already repeated child
+            ((List<Object>) existing).add(value);
+        } else {
+            List<Object> values = new ArrayList<>();
+            values.add(existing);
+            values.add(value);
+            fields.put(name, values);
+        }
+    }
+
+    private static boolean isWhitespace(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,186 @@
+package com.entertainment.nifi.processor.util;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled subset of XPath selecting the elements to split, e.g. {@code /catalog/book} or {@code //book[@type='x']}.
+ * Steps are separated by {@code /} for a child or {@code //} for a descendant, a step is a local name or {@code *},
+ * optionally followed by predicates {@code [@name]} or {@code [@name='value']}. Prefixes are ignored, names are
+ * compared on their local part.
+ * <p>
+ * The path is matched while streaming: the state of an element is a bit set of the steps matched so far, computed
+ * from the state of its parent, so matching costs a few comparisons per start tag. An element with no live state
+ * cannot contain a match and its subtree is skipped.
+ */
+public final class ElementPath {
+
+    private static final int MAX_STEPS = 62;
+
+    private final String path;
+    private final Step[] steps;
+    private final long descendants;
+
+    private ElementPath(String path, Step[] steps) {
+        this.path = path;
+        this.steps = steps;
+        long descendants = 0;
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i].descendant) {
+                descendants |= 1L << i;
+            }
+        }
+        this.descendants = descendants;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the path is not supported
+     */
+    public static ElementPath compile(String path) {
+        List<Step> steps = new ArrayList<>();
+        int i = 0;
+        int length = path.length();
+        if (length == 0 || path.charAt(0) != '/') {
+            throw new IllegalArgumentException("Path must start with / or //");
+        }
+        while (i < length) {
+            if (path.charAt(i) != '/') {
+                throw new IllegalArgumentException("Expected / at " + i);
+            }
+            boolean descendant = path.startsWith("//", i);
+            i += descendant ? 2 : 1;
+            int start = i;
+            while (i < length && path.charAt(i) != '/' && path.charAt(i) != '[') {
+                i++;
+            }
+            String name = path.substring(start, i).trim();
+            if (name.isEmpty()) {
+                throw new IllegalArgumentException("Missing element name at " + start);
+            }
+            int colon = name.indexOf(':');
+            if (colon >= 0) {
+                name = name.substring(colon + 1);
+            }
+            List<String[]> predicates = new ArrayList<>();
+            while (i < length && path.charAt(i) == '[') {
+                int end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed predicate at " + i);
+                }
+                predicates.add(predicate(path.substring(i + 1, end).trim(), i));
+                i = end + 1;
+            }
+            steps.add(new Step(descendant, "*".equals(name) ? null : name, predicates.toArray(new String[0][])));
+        }
+        if (steps.size() > MAX_STEPS) {
+            throw new IllegalArgumentException("Path has more than " + MAX_STEPS + " steps");
+        }
+        return new ElementPath(path, steps.toArray(new Step[0]));
+    }
+
+    private static String[] predicate(String predicate, int position) {
+        if (!predicate.startsWith("@")) {
+            throw new IllegalArgumentException("Only attribute predicates are supported, at " + position);
+        }
+        int equals = predicate.indexOf('=');
+        if (equals < 0) {
+            return new String[]{predicate.substring(1).trim(), null};
+        }
+        String value = predicate.substring(equals + 1).trim();
+        if (value.length() < 2 || (value.charAt(0) != '\'' && value.charAt(0) != '"') || value.charAt(value.length() - 1) != value.charAt(0)) {
+            throw new IllegalArgumentException("Predicate value must be quoted, at " + position);
+        }
+        return new String[]{predicate.substring(1, equals).trim(), value.substring(1, value.length() - 1)};
+    }
+
+    /**
+     * State of the document node, before the root element.
+     */
+    long start() {
+        return 1L;
+    }
+
+    /**
+     * State of the element the reader is positioned on, given the state of its parent. 0 means nothing can match
+     * in its subtree.
+     */
+    long next(long parent, XMLStreamReader reader) {
+        long state = parent & descendants;
+        for (long live = parent; live != 0; live &= live - 1) {
+            int i = Long.numberOfTrailingZeros(live);
+            if (i < steps.length && steps[i].matches(reader)) {
+                state |= 1L << (i + 1);
+            }
+        }
+        return state;
+    }
+
+    long next(long parent, StartElement element) {
+        long state = parent & descendants;
+        for (long live = parent; live != 0; live &= live - 1) {
+            int i = Long.numberOfTrailingZeros(live);
+            if (i < steps.length && steps[i].matches(element)) {
+                state |= 1L << (i + 1);
+            }
+        }
+        return state;
+    }
+
+    boolean matches(long state) {
+        return (state & (1L << steps.length)) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    private static class Step {
+        private final boolean descendant;
+        // null for *
+        private final String name;
+        // attribute name and value, null value for presence only
+        private final String[][] predicates;
+        private final QName[] attributeNames;
+
+        private Step(boolean descendant, String name, String[][] predicates) {
+            this.descendant = descendant;
+            this.name = name;
+            this.predicates = predicates;
+            this.attributeNames = new QName[predicates.length];
+            for (int i = 0; i < predicates.length; i++) {
+                attributeNames[i] = new QName(predicates[i][0]);
+            }
+        }
+
+        private boolean matches(XMLStreamReader reader) {
+            if (name != null && !name.equals(reader.getLocalName())) {
+                return false;
+            }
+            for (String[] predicate : predicates) {
+                String value = reader.getAttributeValue(null, predicate[0]);
+                if (value == null || (predicate[1] != null && !predicate[1].equals(value))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matches(StartElement element) {
+            if (name != null && !name.equals(element.getName().getLocalPart())) {
+                return false;
+            }
+            for (int i = 0; i < predicates.length; i++) {
+                Attribute attribute = element.getAttributeByName(attributeNames[i]);
+                if (attribute == null || (predicates[i][1] != null && !predicates[i][1].equals(attribute.getValue()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package com.entertainment.nifi.processor.util;
+
+import org.codehaus.stax2.validation.XMLValidationException;
+import org.codehaus.stax2.validation.XMLValidationProblem;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Namespace;
+import javax.xml.stream.events.StartElement;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Pull side of a split engine: finds the elements at split depth and copies them to the current chunk.
+ */
+abstract class ElementSource implements Closeable {
+
+    // what enter() tells the engine to do with a start element
+    protected static final int DESCEND = 0;
+    protected static final int MATCH = 1;
+    protected static final int SKIP = 2;
+
+    protected final int splitDepth;
+    protected int depth = -1;
+
+    // selects the split elements instead of splitDepth when set, states[d] is the path state of the open element at depth d
+    private ElementPath path;
+    private long[] states;
+    // fed by the copy loop of engines that support partitioning
+    protected PartitionKey.Tracker keyTracker;
+
+    // statistics, see SplitMetrics
+    long elementsScanned;
+    int peakDepth = -1;
+    long largestElement;
+
+    // char offset of the split element the source stopped on, kept by the engines that can checkpoint
+    protected long elementOffset = -1;
+    // char offset after the split element copied last, -1 where elementOffset is not kept
+    long elementEnd = -1;
+    // input chars a split element may span, 0 for no limit
+    protected long maxElementSize;
+    // first validation problem since the last takeProblem()
+    private String problem;
+
+    // ancestors of the split elements, only tracked when the chunks are wrapped in them or checkpointed
+    private boolean wrapInAncestors;
+    private boolean trackAncestors;
+    private String version = "1.0";
+    private String standalone;
+    // the prologue has a document type declaration
+    protected boolean doctype;
+    private final List<String> ancestorTags = new ArrayList<>();
+    private final List<String> ancestorNames = new ArrayList<>();
+    private int ancestorsVersion;
+    // lowest depth an ancestor was recorded at since the last match, and the depth of that match
+    private int recordedDepth = Integer.MAX_VALUE;
+    private int matchedDepth = -1;
+    private byte[] prologue;
+    private byte[] epilogue;
+
+    protected ElementSource(int splitDepth) {
+        this.splitDepth = splitDepth;
+    }
+
+    void setWrapInAncestors(boolean wrapInAncestors) {
+        this.wrapInAncestors = wrapInAncestors;
+    }
+
+    /**
+     * Track the ancestors for {@link #getAncestorTags()} without wrapping the chunks in them.
+     */
+    void setTrackAncestors(boolean trackAncestors) {
+        this.trackAncestors = trackAncestors;
+    }
+
+    void setElementPath(ElementPath path) {
+        this.path = path;
+        this.states = new long[16];
+    }
+
+    void setMaxElementSize(long maxElementSize) {
+        this.maxElementSize = maxElementSize;
+    }
+
+    /**
+     * Fail once the split element being copied spans more than {@link #maxElementSize} input chars, the engines check
+     * while copying so that the element never has to be held in full.
+     */
+    protected void checkSize(long chars) throws XMLStreamException {
+        if (maxElementSize > 0 && chars > maxElementSize) {
+            throw tooLarge(maxElementSize);
+        }
+    }
+
+    static XMLStreamException tooLarge(long maxElementSize) {
+        return new XMLStreamException(new LimitExceededException("Split element spans more than " + maxElementSize + " chars"));
+    }
+
+    /**
+     * Validate the input against the schema, the problems are kept for {@link #takeProblem()} instead of failing the
+     * parse. Must be called before the first element.
+     * @throws IOException if the engine cannot validate
+     */
+    abstract void setSchema(XMLValidationSchema schema) throws XMLStreamException, IOException;
+
+    /**
+     * Validation problem handler of the engines that validate, only a fatal problem stops the parse.
+     */
+    protected void problem(XMLValidationProblem problem) throws XMLValidationException {
+        if (problem.getSeverity() >= XMLValidationProblem.SEVERITY_FATAL) {
+            throw XMLValidationException.createException(problem);
+        }
+        if (problem.getSeverity() >= XMLValidationProblem.SEVERITY_ERROR && this.problem == null) {
+            this.problem = problem.getMessage();
+        }
+    }
+
+    /**
+     * The first validation problem found since the last call, null if there was none.
+     */
+    String takeProblem() {
+        final String taken = problem;
+        problem = null;
+        return taken;
+    }
+
+    void setPartitionKey(PartitionKey partitionKey) {
+        this.keyTracker = partitionKey.newTracker();
+    }
+
+    /**
+     * Partition key of the element copied last.
+     */
+    String getPartitionKey() {
+        return keyTracker.key();
+    }
+
+    /**
+     * Match the start element the reader is positioned on, at {@link #depth}.
+     * @return {@link #MATCH} for a split element, {@link #SKIP} if its subtree holds none, {@link #DESCEND} otherwise
+     */
+    protected int enter(XMLStreamReader reader) {
+        if (path == null) {
+            return depth == splitDepth ? MATCH : DESCEND;
+        }
+        return enter(path.next(depth == 0 ? path.start() : states[depth - 1], reader));
+    }
+
+    protected int enter(StartElement element) {
+        if (path == null) {
+            return depth == splitDepth ? MATCH : DESCEND;
+        }
+        return enter(path.next(depth == 0 ? path.start() : states[depth - 1], element));
+    }
+
+    private int enter(long state) {
+        if (state == 0) {
+            return SKIP;
+        }
+        if (path.matches(state)) {
+            return MATCH;
+        }
+        if (depth == states.length) {
+            states = Arrays.copyOf(states, depth * 2);
+        }
+        states[depth] = state;
+        return DESCEND;
+    }
+
+    /**
+     * Count the start element the scan just passed at {@link #depth}.
+     */
+    protected void scanned() {
+        elementsScanned++;
+        if (depth > peakDepth) {
+            peakDepth = depth;
+        }
+    }
+
+    /**
+     * The split element at {@link #depth} was copied.
+     * @param chars input chars it spans
+     * @param levels levels of elements it holds, 1 for an element without children
+     */
+    protected void copied(long chars, int levels) throws XMLStreamException {
+        checkSize(chars);
+        elementEnd = elementOffset < 0 ? -1 : elementOffset + chars;
+        if (chars > largestElement) {
+            largestElement = chars;
+        }
+        if (depth + levels - 1 > peakDepth) {
+            peakDepth = depth + levels - 1;
+        }
+    }
+
+    /**
+     * Whether the element the source just descended into has to be recorded as an ancestor.
+     */
+    protected boolean isAncestor() {
+        return wrapInAncestors || trackAncestors;
+    }
+
+    /**
+     * The source stopped on a split element at {@link #depth}, drop recorded elements that are not its ancestors.
+     */
+    protected void matched() {
+        if (!isAncestor()) {
+            return;
+        }
+        while (ancestorTags.size() > depth) {
+            ancestorTags.remove(ancestorTags.size() - 1);
+            ancestorNames.remove(ancestorNames.size() - 1);
+        }
+        if (wrapInAncestors && (recordedDepth < depth || matchedDepth != depth)) {
+            ancestorsVersion++;
+            prologue = null;
+            epilogue = null;
+        }
+        recordedDepth = Integer.MAX_VALUE;
+        matchedDepth = depth;
+    }
+
+    /**
+     * Encoding of the chunks written by this source, declared in the prologue.
+     */
+    protected Charset getOutputCharset() {
+        return StandardCharsets.UTF_8;
+    }
+
+    protected void declaration(String version, boolean standaloneSet, boolean standalone) {
+        this.version = version == null ? "1.0" : version;
+        this.standalone = standaloneSet ? (standalone ? "yes" : "no") : null;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * yes or no, null if the declaration has no standalone.
+     */
+    String getStandalone() {
+        return standalone;
+    }
+
+    protected void ancestor(XMLStreamReader reader) {
+        StringBuilder tag = new StringBuilder("<");
+        String name = qualifiedName(reader.getPrefix(), reader.getLocalName());
+        tag.append(name);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            appendNamespace(tag, reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            appendAttribute(tag, qualifiedName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)), reader.getAttributeValue(i));
+        }
+        ancestor(tag.append('>').toString(), name);
+    }
+
+    protected void ancestor(StartElement element) {
+        StringBuilder tag = new StringBuilder("<");
+        String name = qualifiedName(element.getName());
+        tag.append(name);
+        for (Iterator it = element.getNamespaces(); it.hasNext(); ) {
+            Namespace namespace = (Namespace) it.next();
+            appendNamespace(tag, namespace.getPrefix(), namespace.getNamespaceURI());
+        }
+        for (Iterator it = element.getAttributes(); it.hasNext(); ) {
+            Attribute attribute = (Attribute) it.next();
+            appendAttribute(tag, qualifiedName(attribute.getName()), attribute.getValue());
+        }
+        ancestor(tag.append('>').toString(), name);
+    }
+
+    private void ancestor(String tag, String name) {
+        while (ancestorTags.size() > depth) {
+            ancestorTags.remove(ancestorTags.size() - 1);
+            ancestorNames.remove(ancestorNames.size() - 1);
+        }
+        ancestorTags.add(tag);
+        ancestorNames.add(name);
+        recordedDepth = Math.min(recordedDepth, depth);
+    }
+
+    /**
+     * Changes whenever a split element has other ancestors than the one before, a chunk must not span two versions.
+     */
+    int getAncestorsVersion() {
+        return ancestorsVersion;
+    }
+
+    /**
+     * The xml declaration and the start tags of the current ancestors, encoded once per set of ancestors.
+     */
+    byte[] getPrologue() {
+        if (prologue == null) {
+            Charset charset = getOutputCharset();
+            StringBuilder text = new StringBuilder("<?xml version=\"").append(version)
+                    .append("\" encoding=\"").append(charset.name()).append('"');
+            if (standalone != null) {
+                text.append(" standalone=\"").append(standalone).append('"');
+            }
+            text.append("?>");
+            for (String tag : ancestorTags) {
+                text.append(tag);
+            }
+            prologue = text.toString().getBytes(charset);
+        }
+        return prologue;
+    }
+
+    /**
+     * The start tags of the current ancestors.
+     */
+    String getAncestorTags() {
+        StringBuilder text = new StringBuilder();
+        for (String tag : ancestorTags) {
+            text.append(tag);
+        }
+        return text.toString();
+    }
+
+    byte[] getEpilogue() {
+        if (epilogue == null) {
+            StringBuilder text = new StringBuilder();
+            for (int i = ancestorNames.size() - 1; i >= 0; i--) {
+                text.append("</").append(ancestorNames.get(i)).append('>');
+            }
+            epilogue = text.toString().getBytes(getOutputCharset());
+        }
+        return epilogue;
+    }
+
+    private static String qualifiedName(QName name) {
+        return qualifiedName(name.getPrefix(), name.getLocalPart());
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ':' + localName;
+    }
+
+    private static void appendNamespace(StringBuilder tag, String prefix, String uri) {
+        appendAttribute(tag, prefix == null || prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri == null ? "" : uri);
+    }
+
+    private static void appendAttribute(StringBuilder tag, String name, String value) {
+        tag.append(' ').append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&': tag.append("&amp;"); break;
+                case '<': tag.append("&lt;"); break;
+                case '"': tag.append("&quot;"); break;
+                case '\t': tag.append("&#x9;"); break;
+                case '\n': tag.append("&#xA;"); break;
+                case '\r': tag.append("&#xD;"); break;
+                default: tag.append(c);
+            }
+        }
+        tag.append('"');
+    }
+
+    /**
+     * Advance to the start of the next element at split depth, unless already positioned on one.
+     * @return false once the document is exhausted
+     */
+    abstract boolean next() throws XMLStreamException;
+
+    /**
+     * Start a new chunk, subsequent copies go to the given stream.
+     */
+    abstract void beginChunk(OutputStream outputStream) throws XMLStreamException;
+
+    /**
+     * Copy the element the source is positioned on, including its end tag, to the current chunk.
+     */
+    abstract void copy() throws XMLStreamException;
+
+    /**
+     * Push what was written for the current chunk so far down to its stream.
+     */
+    abstract void flush() throws XMLStreamException;
+
+    /**
+     * Flush everything written for the current chunk to its stream.
+     */
+    abstract void endChunk() throws XMLStreamException;
+
+    /**
+     * Map the element the source is positioned on to fields, see {@link ElementMapper}.
+     * @return number of input chars the element spans
+     * @throws IOException if the engine cannot map elements
+     */
+    abstract long read(ElementConsumer consumer) throws XMLStreamException, IOException;
+
+    /**
+     * Start capturing elements for a chunk that is serialized off the parsing thread.
+     */
+    abstract CapturedChunk newCapturedChunk();
+
+    @Override
+    public abstract void close();
+}
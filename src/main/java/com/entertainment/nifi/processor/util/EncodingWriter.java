@@ -0,0 +1,72 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writer encoding through buffers it owns. OutputStreamWriter wraps every char[] it is given in a new
+ * CharBuffer, which shows up as garbage per element when verbatim copying.
+ */
+class EncodingWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes;
+
+    EncodingWriter(OutputStream out, Charset charset) {
+        this.out = out;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate((int) Math.ceil(BUFFER_SIZE * encoder.maxBytesPerChar()));
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, n);
+            off += n;
+            len -= n;
+            if (!chars.hasRemaining()) {
+                encode();
+            }
+        }
+    }
+
+    private void encode() throws IOException {
+        chars.flip();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, false);
+            if (result.isError()) {
+                result.throwException();
+            }
+            out.write(bytes.array(), 0, bytes.position());
+            bytes.clear();
+        } while (result.isOverflow());
+        // keeps a trailing high surrogate for the next write
+        chars.compact();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        encode();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
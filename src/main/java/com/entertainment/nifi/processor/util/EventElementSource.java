@@ -0,0 +1,234 @@
+package com.entertainment.nifi.processor.util;
+
+import org.codehaus.stax2.validation.XMLValidationSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.*;
+import javax.xml.stream.events.EndElement;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link SplitEngine#EVENT} engine, built on XMLEventReader/XMLEventWriter.
+ */
+class EventElementSource extends ElementSource {
+
+    private static Logger logger = LoggerFactory.getLogger(EventElementSource.class);
+
+    private final XMLEventReader xmlEventReader;
+    private final XMLOutputFactory xmlOutputFactory;
+    // start element of the next split element, already consumed from the reader
+    private XMLEvent pending;
+    // the splitter retargets one stream for all chunks, so the writer normally lives as long as the document
+    private OutputStream target;
+    private XMLEventWriter writer;
+
+    EventElementSource(XMLInputFactory xmlInputFactory, XMLOutputFactory xmlOutputFactory, InputStream inputStream, int splitDepth) throws XMLStreamException {
+        super(splitDepth);
+        this.xmlEventReader = xmlInputFactory.createXMLEventReader(inputStream);
+        this.xmlOutputFactory = xmlOutputFactory;
+    }
+
+    @Override
+    boolean next() throws XMLStreamException {
+        if (pending != null) {
+            return true;
+        }
+        while (xmlEventReader.hasNext()) {
+            XMLEvent event = xmlEventReader.nextEvent();
+            if (event.getEventType() == XMLStreamConstants.START_ELEMENT) {
+                depth++ ;
+                scanned();
+                if (depth == 0 && logger.isDebugEnabled()) {
+                    // this is the root element, get namespace
+                    StartElement startElement = event.asStartElement();
+                    StringBuilder namespaces = new StringBuilder();
+                    Iterator it = startElement.getNamespaces();
+                    while(it.hasNext()) {
+                        namespaces.append(it.next()).append('\n');
+                    }
+                    logger.debug("Root element {}, XML namespaces: \n{}", startElement.getName(), namespaces);
+                }
+                int match = enter(event.asStartElement());
+                if (match == MATCH) {
+                    matched();
+                    pending = event;
+                    return true;
+                }
+                if (match == SKIP) {
+                    skipElement();
+                    depth--;
+                } else if (isAncestor()) {
+                    ancestor(event.asStartElement());
+                }
+            } else if (event.getEventType() == XMLStreamConstants.START_DOCUMENT) {
+                StartDocument startDocument = (StartDocument) event;
+                declaration(startDocument.getVersion(), startDocument.standaloneSet(), startDocument.isStandalone());
+            } else if (event.getEventType() == XMLStreamConstants.END_ELEMENT){
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            XMLEvent event = xmlEventReader.nextEvent();
+            if (event.isStartElement()) {
+                level++;
+            } else if (event.isEndElement()) {
+                level--;
+            }
+        }
+    }
+
+    @Override
+    void beginChunk(OutputStream outputStream) throws XMLStreamException {
+        if (writer == null || target != outputStream) {
+            writer = xmlOutputFactory.createXMLEventWriter(outputStream);
+            target = outputStream;
+        }
+    }
+
+    @Override
+    void copy() throws XMLStreamException {
+        XMLEvent event = pending;
+        pending = null;
+        writeNode(xmlEventReader, event, writer);
+        // we get duplicate for current element
+        depth--;
+    }
+
+    @Override
+    void setSchema(XMLValidationSchema schema) throws IOException {
+        // validation is a Stax2 stream reader feature
+        throw new IOException("The " + SplitEngine.EVENT + " engine cannot validate");
+    }
+
+    @Override
+    long read(ElementConsumer consumer) throws IOException {
+        // ElementMapper walks a stream reader, this engine only has events
+        throw new IOException("The " + SplitEngine.EVENT + " engine cannot map elements to records");
+    }
+
+    @Override
+    void flush() throws XMLStreamException {
+        writer.flush();
+    }
+
+    @Override
+    void endChunk() throws XMLStreamException {
+        writer.flush();
+    }
+
+    @Override
+    CapturedChunk newCapturedChunk() {
+        return new CapturedChunk() {
+            private final List<XMLEvent> events = new ArrayList<>();
+
+            @Override
+            long capture() throws XMLStreamException {
+                XMLEvent startEvent = pending;
+                pending = null;
+                QName name = startEvent.asStartElement().getName();
+                events.add(startEvent);
+                int stack = 1;
+                int level = 1;
+                int levels = 1;
+                XMLEvent event;
+                do {
+                    event = xmlEventReader.nextEvent();
+                    if (maxElementSize > 0) {
+                        checkSize(event.getLocation().getCharacterOffset() - startEvent.getLocation().getCharacterOffset());
+                    }
+                    events.add(event);
+                    if (event.isStartElement()) {
+                        if (++level > levels) {
+                            levels = level;
+                        }
+                        if (event.asStartElement().getName().equals(name)) {
+                            stack++;
+                        }
+                    } else if (event.isEndElement()) {
+                        level--;
+                        if (event.asEndElement().getName().equals(name)) {
+                            stack--;
+                        }
+                    }
+                } while (stack > 0);
+                // up to the start of the end tag, close enough for size bounded chunks
+                long size = event.getLocation().getCharacterOffset() - startEvent.getLocation().getCharacterOffset();
+                copied(size, levels);
+                depth--;
+                return size;
+            }
+
+            @Override
+            void writeTo(OutputStream outputStream) throws XMLStreamException {
+                XMLEventWriter writer = xmlOutputFactory.createXMLEventWriter(outputStream);
+                for (XMLEvent event : events) {
+                    writer.add(event);
+                }
+                writer.close();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (writer != null) {
+                // closing a stax writer never closes the underlying stream
+                writer.close();
+            }
+            xmlEventReader.close();
+        }catch (Exception e){}
+    }
+
+    protected void writeNode(XMLEventReader xmlEventReader, XMLEvent startEvent, XMLEventWriter writer) throws XMLStreamException {
+
+        StartElement element = startEvent.asStartElement();
+        QName name = element.getName();
+
+        int stack = 1;
+        int level = 1;
+        int levels = 1;
+        writer.add(element);
+        while (true) {
+            XMLEvent event = xmlEventReader.nextEvent();
+            if (maxElementSize > 0) {
+                checkSize(event.getLocation().getCharacterOffset() - startEvent.getLocation().getCharacterOffset());
+            }
+            if (event.isStartElement()) {
+                if (++level > levels) {
+                    levels = level;
+                }
+                if (event.asStartElement().getName().equals(name))
+                    stack++;
+            }
+            if (event.isEndElement()) {
+                level--;
+                EndElement end = event.asEndElement();
+                if (end.getName().equals(name)) {
+                    stack--;
+                    if (stack == 0) {
+                        writer.add(event);
+                        copied(event.getLocation().getCharacterOffset() - startEvent.getLocation().getCharacterOffset(), levels);
+                        break;
+                    }
+                }
+            }
+            writer.add(event);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+
+/**
+ * Receives the chunks of elements that failed validation in a validated split, on the thread that started the split.
+ */
+public interface InvalidConsumer {
+
+    /**
+     * @param problem the first validation problem found in the elements of the chunk
+     */
+    void accept(byte[] chunk, int elementCount, String problem) throws IOException;
+}
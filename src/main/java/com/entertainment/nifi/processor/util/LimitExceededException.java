@@ -0,0 +1,18 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+
+/**
+ * The input breaks one of the limits of the split, see {@link XMLSplitByCountUtil#setMaxElementSize(long)} and
+ * {@link XMLSplitByCountUtil#createInputFactory(int, int)}. Whatever was read of the offending element is dropped.
+ */
+public class LimitExceededException extends IOException {
+
+    public LimitExceededException(String message) {
+        super(message);
+    }
+
+    public LimitExceededException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
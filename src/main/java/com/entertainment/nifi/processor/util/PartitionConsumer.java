@@ -0,0 +1,11 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.IOException;
+
+/**
+ * Receives the chunks of a partitioned split, each holding elements with the same key, on the thread that started the split.
+ */
+public interface PartitionConsumer {
+
+    void accept(String key, byte[] chunk, int elementCount) throws IOException;
+}
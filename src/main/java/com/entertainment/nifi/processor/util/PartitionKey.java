@@ -0,0 +1,123 @@
+package com.entertainment.nifi.processor.util;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Where the partition key is found in a split element, relative to it: {@code @id} for an attribute of the element,
+ * {@code genre} for the text of a child, {@code info/genre/@lang} for an attribute further down. Names are local
+ * names, the first occurrence wins and an element without the key goes to the partition with an empty key.
+ */
+public final class PartitionKey {
+
+    private final String expression;
+    private final String[] names;
+    // null when the key is the text of the last element
+    private final String attribute;
+
+    private PartitionKey(String expression, String[] names, String attribute) {
+        this.expression = expression;
+        this.names = names;
+        this.attribute = attribute;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is not supported
+     */
+    public static PartitionKey compile(String expression) {
+        String[] steps = expression.trim().split("/", -1);
+        String attribute = null;
+        int length = steps.length;
+        if (steps[length - 1].startsWith("@")) {
+            attribute = steps[length - 1].substring(1);
+            length--;
+        }
+        String[] names = new String[length];
+        for (int i = 0; i < length; i++) {
+            String name = steps[i].trim();
+            if (name.isEmpty() || name.startsWith("@") || name.contains("[") || name.equals("*")) {
+                throw new IllegalArgumentException("Expected an element name as step " + (i + 1));
+            }
+            int colon = name.indexOf(':');
+            names[i] = colon < 0 ? name : name.substring(colon + 1);
+        }
+        if (attribute != null && attribute.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing attribute name");
+        }
+        if (attribute == null && length == 0) {
+            throw new IllegalArgumentException("Expected a child element or an attribute");
+        }
+        return new PartitionKey(expression, names, attribute == null ? null : attribute.trim());
+    }
+
+    Tracker newTracker() {
+        return new Tracker();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * Finds the key while an element is copied, fed with the events of the copy loop.
+     */
+    class Tracker {
+        private final StringBuilder text = new StringBuilder();
+        private String key;
+        // number of steps matched along the open elements
+        private int matched;
+        private boolean capturing;
+
+        /**
+         * The reader is positioned on the start tag of the split element.
+         */
+        void begin(XMLStreamReader reader) {
+            key = null;
+            matched = 0;
+            capturing = false;
+            if (names.length == 0) {
+                key = reader.getAttributeValue(null, attribute);
+            }
+        }
+
+        /**
+         * @param level number of open elements after the event, 1 for the split element itself
+         */
+        void observe(XMLStreamReader reader, int eventType, int level) {
+            if (key != null) {
+                return;
+            }
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                int depth = level - 1;
+                if (depth == matched + 1 && depth <= names.length && names[depth - 1].equals(reader.getLocalName())) {
+                    matched = depth;
+                    if (matched == names.length) {
+                        if (attribute != null) {
+                            key = reader.getAttributeValue(null, attribute);
+                        } else {
+                            capturing = true;
+                            text.setLength(0);
+                        }
+                    }
+                }
+            } else if (eventType == XMLStreamConstants.CHARACTERS || eventType == XMLStreamConstants.CDATA) {
+                if (capturing) {
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                }
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                if (capturing && level == names.length) {
+                    key = text.toString().trim();
+                    capturing = false;
+                }
+                if (matched >= level) {
+                    matched = level - 1;
+                }
+            }
+        }
+
+        String key() {
+            return key == null ? "" : key;
+        }
+    }
+}
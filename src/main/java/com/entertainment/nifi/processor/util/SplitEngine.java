@@ -0,0 +1,21 @@
+package com.entertainment.nifi.processor.util;
+
+/**
+ * Parser engines {@link XMLSplitByCountUtil} can split with.
+ */
+public enum SplitEngine {
+    /**
+     * XMLEventReader/XMLEventWriter, every tag, attribute and text run is materialized as an XMLEvent.
+     */
+    EVENT,
+    /**
+     * Stax2 XMLStreamReader2/XMLStreamWriter2 cursor, split elements are passed through with
+     * copyEventFromReader without building an object per event.
+     */
+    CURSOR,
+    /**
+     * The parser only locates the split elements, their chars are copied from the input unchanged,
+     * keeping the original formatting, whitespace and entity references.
+     */
+    VERBATIM
+}
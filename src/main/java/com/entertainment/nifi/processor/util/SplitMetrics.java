@@ -0,0 +1,72 @@
+package com.entertainment.nifi.processor.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of one split, cheap enough to be collected all the time: a few counters per element and a clock read
+ * around the scan and the copy of each split element. Sizes of elements are measured in input chars.
+ */
+public class SplitMetrics {
+
+    long elementsScanned;
+    long elementsEmitted;
+    long largestElement;
+    int peakDepth = -1;
+    long scanNanos;
+    long copyNanos;
+    // written by worker threads in a parallel split
+    final AtomicLong serializeNanos = new AtomicLong();
+    // writes to the chunk stream, part of the copy time
+    long chunkIoNanos;
+    long consumerNanos;
+
+    /**
+     * Start tags the scan went through to find the split elements, a skipped subtree counts once.
+     */
+    public long getElementsScanned() {
+        return elementsScanned;
+    }
+
+    public long getElementsEmitted() {
+        return elementsEmitted;
+    }
+
+    public long getLargestElement() {
+        return largestElement;
+    }
+
+    /**
+     * Deepest element seen, 0 for the root as with the split depth, -1 for an empty document.
+     */
+    public int getPeakDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * Time spent parsing up to the next split element.
+     */
+    public long getParseNanos() {
+        return scanNanos;
+    }
+
+    /**
+     * Time spent copying split elements to their chunk, minus the time the chunk stream took to take the bytes.
+     */
+    public long getWriteNanos() {
+        return Math.max(0, copyNanos - chunkIoNanos) + serializeNanos.get();
+    }
+
+    /**
+     * Time the chunk streams and chunk consumers took to take the bytes.
+     */
+    public long getIoNanos() {
+        return chunkIoNanos + consumerNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "elements scanned " + elementsScanned + ", emitted " + elementsEmitted + ", largest element " + largestElement
+                + " chars, peak depth " + peakDepth + ", parse " + getParseNanos() / 1000000 + " ms, write "
+                + getWriteNanos() / 1000000 + " ms, io " + getIoNanos() / 1000000 + " ms";
+    }
+}
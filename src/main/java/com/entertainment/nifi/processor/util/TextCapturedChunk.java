@@ -0,0 +1,36 @@
+package com.entertainment.nifi.processor.util;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Chunk captured as chars, encoding them is left to the worker thread.
+ */
+abstract class TextCapturedChunk extends CapturedChunk {
+
+    private final CharArrayWriter buffer = new CharArrayWriter(8192);
+    private final Charset charset;
+
+    TextCapturedChunk(Charset charset) {
+        this.charset = charset;
+    }
+
+    CharArrayWriter getBuffer() {
+        return buffer;
+    }
+
+    void reset() {
+        buffer.reset();
+    }
+
+    @Override
+    void writeTo(OutputStream outputStream) throws IOException {
+        Writer writer = new OutputStreamWriter(outputStream, charset);
+        buffer.writeTo(writer);
+        writer.flush();
+    }
+}
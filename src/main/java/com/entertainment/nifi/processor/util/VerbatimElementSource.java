@@ -0,0 +1,272 @@
+package com.entertainment.nifi.processor.util;
+
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link SplitEngine#VERBATIM} engine. The parser is only used to find where the split elements start
+ * and end; the chars in between are copied from the input as is, keeping formatting, whitespace and
+ * entity references. Chunks are written in the encoding of the source document.
+ */
+class VerbatimElementSource extends ElementSource {
+
+    // release consumed chars once this many are buffered
+    private static final int RELEASE_THRESHOLD = 1 << 16;
+    private static final int PROLOG_PEEK = 1024;
+    private static final Pattern ENCODING = Pattern.compile("^<\\?xml[^>]*encoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)[\"']");
+
+    private final XMLStreamReader2 reader;
+    private final CharTapReader tap;
+    private final Charset charset;
+    // the splitter retargets one stream for all chunks, so the writer normally lives as long as the document
+    private OutputStream target;
+    private Writer writer;
+    // reader is positioned on the start tag of a split element that was not copied yet
+    private boolean pending;
+    // end tags of elements above this depth are counted, see XMLSplitByCountUtil#splitRanges
+    private int closeLevel;
+    private int closed;
+
+    VerbatimElementSource(XMLInputFactory2 xmlInputFactory, InputStream inputStream, int splitDepth) throws XMLStreamException, IOException {
+        super(splitDepth);
+        InputStream in = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+        this.charset = detectCharset(in);
+        // a replacement char would make badly encoded input look valid, the other engines fail on it
+        this.tap = new CharTapReader(new InputStreamReader(in, charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)));
+        this.reader = (XMLStreamReader2) xmlInputFactory.createXMLStreamReader(tap);
+        declaration(reader.getVersion(), reader.standaloneSet(), reader.isStandalone());
+    }
+
+    /**
+     * Charset from the byte order mark or the xml declaration, UTF-8 otherwise. A byte order mark is skipped.
+     */
+    static Charset detectCharset(InputStream in) throws IOException {
+        byte[] prolog = new byte[PROLOG_PEEK];
+        in.mark(PROLOG_PEEK);
+        int n = 0;
+        int read;
+        while (n < PROLOG_PEEK && (read = in.read(prolog, n, PROLOG_PEEK - n)) > 0) {
+            n += read;
+        }
+        in.reset();
+        if (n >= 3 && (prolog[0] & 0xFF) == 0xEF && (prolog[1] & 0xFF) == 0xBB && (prolog[2] & 0xFF) == 0xBF) {
+            in.skip(3);
+            return StandardCharsets.UTF_8;
+        }
+        if (n >= 2 && (prolog[0] & 0xFF) == 0xFE && (prolog[1] & 0xFF) == 0xFF) {
+            in.skip(2);
+            return StandardCharsets.UTF_16BE;
+        }
+        if (n >= 2 && (prolog[0] & 0xFF) == 0xFF && (prolog[1] & 0xFF) == 0xFE) {
+            in.skip(2);
+            return StandardCharsets.UTF_16LE;
+        }
+        Matcher matcher = ENCODING.matcher(new String(prolog, 0, n, StandardCharsets.ISO_8859_1));
+        if (matcher.find()) {
+            try {
+                return Charset.forName(matcher.group(1));
+            } catch (IllegalArgumentException e) {
+                // unknown encoding, let the parser complain if it matters
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    @Override
+    boolean next() throws XMLStreamException {
+        if (pending) {
+            return true;
+        }
+        while (reader.hasNext()) {
+            int eventType = reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                scanned();
+                int match = enter(reader);
+                if (match == MATCH) {
+                    matched();
+                    elementOffset = reader.getLocationInfo().getStartingCharOffset();
+                    tap.release(elementOffset);
+                    pending = true;
+                    return true;
+                }
+                if (match == SKIP) {
+                    skipElement();
+                    depth--;
+                } else if (isAncestor()) {
+                    ancestor(reader);
+                }
+            } else if (eventType == XMLStreamConstants.DTD) {
+                doctype = true;
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                if (depth < closeLevel) {
+                    closed++;
+                }
+                depth--;
+            }
+            if (tap.retained() > RELEASE_THRESHOLD) {
+                tap.release(reader.getLocationInfo().getStartingCharOffset());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the end tags of elements at a depth below the level from now on, 0 counts none.
+     */
+    void countClosed(int level) {
+        closeLevel = level;
+        closed = 0;
+    }
+
+    int getClosed() {
+        return closed;
+    }
+
+    /**
+     * Prefixed name of the split element the source is positioned on.
+     */
+    String getElementName() {
+        return reader.getPrefixedName();
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int eventType = reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                level++;
+            } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                level--;
+            }
+            if (tap.retained() > RELEASE_THRESHOLD) {
+                tap.release(reader.getLocationInfo().getStartingCharOffset());
+            }
+        }
+    }
+
+    @Override
+    protected Charset getOutputCharset() {
+        return charset;
+    }
+
+    @Override
+    void beginChunk(OutputStream outputStream) {
+        if (writer == null || target != outputStream) {
+            writer = new EncodingWriter(outputStream, charset);
+            target = outputStream;
+        }
+    }
+
+    @Override
+    void copy() throws XMLStreamException {
+        pending = false;
+        if (keyTracker != null) {
+            keyTracker.begin(reader);
+        }
+        long start = reader.getLocationInfo().getStartingCharOffset();
+        try {
+            int level = 1;
+            int levels = 1;
+            while (level > 0) {
+                int eventType = reader.next();
+                if (eventType == XMLStreamConstants.START_ELEMENT) {
+                    if (++level > levels) {
+                        levels = level;
+                    }
+                } else if (eventType == XMLStreamConstants.END_ELEMENT) {
+                    level--;
+                }
+                if (keyTracker != null) {
+                    keyTracker.observe(reader, eventType, level);
+                }
+                if (tap.retained() > RELEASE_THRESHOLD) {
+                    // everything before the current event belongs to the element
+                    final long offset = reader.getLocationInfo().getStartingCharOffset();
+                    checkSize(offset - start);
+                    tap.writeTo(writer, offset);
+                }
+            }
+            long end = reader.getLocationInfo().getEndingCharOffset();
+            tap.writeTo(writer, end);
+            copied(end - start, levels);
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+        depth--;
+    }
+
+    @Override
+    long read(ElementConsumer consumer) throws XMLStreamException, IOException {
+        pending = false;
+        long start = reader.getLocationInfo().getStartingCharOffset();
+        Map<String, Object> element = ElementMapper.map(reader, maxElementSize);
+        // nothing is copied, the element text can go
+        long end = reader.getLocationInfo().getEndingCharOffset();
+        tap.release(end);
+        copied(end - start, 1);
+        depth--;
+        consumer.accept(element);
+        return end - start;
+    }
+
+    @Override
+    void setSchema(XMLValidationSchema schema) throws XMLStreamException {
+        reader.setValidationProblemHandler(this::problem);
+        reader.validateAgainst(schema);
+    }
+
+    @Override
+    void flush() throws XMLStreamException {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new XMLStreamException(e);
+        }
+    }
+
+    @Override
+    void endChunk() throws XMLStreamException {
+        flush();
+    }
+
+    @Override
+    CapturedChunk newCapturedChunk() {
+        return new TextCapturedChunk(charset) {
+            @Override
+            long capture() throws XMLStreamException {
+                int before = getBuffer().size();
+                Writer chunkWriter = writer;
+                writer = getBuffer();
+                try {
+                    copy();
+                } finally {
+                    writer = chunkWriter;
+                }
+                return getBuffer().size() - before;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (Exception e) {
+        }
+        tap.recycle();
+    }
+}
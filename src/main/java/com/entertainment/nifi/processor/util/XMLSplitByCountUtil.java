@@ -4,207 +4,1262 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.attribute.FileAttribute;
-import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import com.ctc.wstx.api.WstxInputProperties;
+import com.ctc.wstx.api.WstxOutputProperties;
+import com.ctc.wstx.exc.WstxLazyException;
+import com.ctc.wstx.stax.WstxInputFactory;
+import com.ctc.wstx.stax.WstxOutputFactory;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.XMLOutputFactory2;
+import org.codehaus.stax2.validation.XMLValidationSchema;
 
-import javax.xml.namespace.QName;
 import javax.xml.stream.*;
-import javax.xml.stream.events.EndElement;
-import javax.xml.stream.events.StartElement;
-import javax.xml.stream.events.XMLEvent;
 
 /**
  * Created by dwang on 4/17/17.
+ *
+ * Splits an xml stream into chunks of {@code splitCount} elements found at {@code splitDepth}. A chunk can
+ * also be bounded by size, it is then closed at the first element boundary after the size was reached.
+ * Chunks can either be pulled one at a time with {@link #hasNext()}/{@link #writeNext(OutputStream)},
+ * which writes straight into a caller supplied stream, or written to temp files with {@link #split()}.
  */
-public class XMLSplitByCountUtil {
+public class XMLSplitByCountUtil implements Closeable {
 
     private InputStream inputStream;
 
-    private XMLInputFactory xmlInputFactory;
-    private XMLOutputFactory xmlOutputFactory;
+    private XMLInputFactory2 xmlInputFactory;
+    private XMLOutputFactory2 xmlOutputFactory;
     private int splitDepth, splitCount;
 
-    private String header;
-    private String footer;
+    // header and footer including their line separator, encoded once
+    private byte[] header;
+    private byte[] footer;
 
     private Path workDir;
     public static String PREFIX="nifi_xmlsplitter";
     public static String SUFFIX="tmp.xml";
     public static String LINE_SEPARATOR=System.getProperty("line.separator");
+    // field of a mapped element holding its text, see writeNextRecords
+    public static final String TEXT_FIELD = ElementMapper.TEXT_FIELD;
 
     private static Logger logger = LoggerFactory.getLogger(XMLSplitByCountUtil.class);
 
+    // one element in COPY_SAMPLE has its copy timed, a power of two
+    private static final int COPY_SAMPLE = 8;
+    private static final int SKIP_BUFFER = 65536;
+    private static final byte[] DOCTYPE = "<!DOCTYPE".getBytes(StandardCharsets.US_ASCII);
+    // how woodstox reports a broken P_MAX_* limit, as a plain XMLStreamException
+    private static final Pattern WOODSTOX_LIMIT = Pattern.compile(" limit \\(\\d+\\) exceeded", Pattern.CASE_INSENSITIVE);
+
+    private SplitEngine engine = SplitEngine.EVENT;
+    private long maxSplitSize;
+    private long maxElementSize;
+    private boolean wrapInAncestors;
+    private ElementPath elementPath;
+    private PartitionKey partitionKey;
+    private PartitionKey chunkKey;
+    private XMLValidationSchema schema;
+    private String trailingProblem;
+    private ChunkIndex lastChunk;
+    private Compression outputCompression = Compression.NONE;
+    private int compressionLevel;
+    // see getCheckpoint(), the offsets of a resumed split are shifted by the start tags it was resumed in
+    private boolean checkpoints;
+    private Checkpoint resumeFrom;
+    private Checkpoint checkpoint;
+    private long resumeOffset;
+    private long resumePrologue;
+    private long baseChars;
+    private long baseBytes;
+    private long baseElements;
+    // end tags above this depth are counted by the source, see splitRanges
+    private int rangeLevel;
+    // chunk stream time of the ranges split by other splitters
+    private long rangeIoNanos;
+    private ElementSource source;
+    private final ChunkOutputStream chunk = new ChunkOutputStream();
+    private final SplitMetrics metrics = new SplitMetrics();
+    private int copies;
+
     public XMLSplitByCountUtil(Path workDir, InputStream inputStream, int splitDepth , int splitCount, String header, String footer){
+        this(createInputFactory(), createOutputFactory(), workDir, inputStream, splitDepth, splitCount, header, footer);
+    }
+
+    public XMLSplitByCountUtil(InputStream inputStream, int splitDepth , int splitCount, String header, String footer){
+        this(null, inputStream, splitDepth, splitCount, header, footer);
+    }
+
+    /**
+     * Split with factories from {@link #createInputFactory()}/{@link #createOutputFactory()} shared between splitters,
+     * configured factories are thread safe.
+     */
+    public XMLSplitByCountUtil(XMLInputFactory2 xmlInputFactory, XMLOutputFactory2 xmlOutputFactory, Path workDir, InputStream inputStream, int splitDepth , int splitCount, String header, String footer){
         this.splitDepth = splitDepth;
         this.splitCount =splitCount;
         this.inputStream = inputStream;
-        this.xmlInputFactory = XMLInputFactory.newInstance();
-        this.xmlOutputFactory = XMLOutputFactory.newInstance();
-        this.xmlOutputFactory.setProperty("javax.xml.stream.isRepairingNamespaces"
-                , Boolean.FALSE);
-        this.header=header;
-        this.footer=footer;
+        this.xmlInputFactory = xmlInputFactory;
+        this.xmlOutputFactory = xmlOutputFactory;
+        this.header = header == null ? null : (header + LINE_SEPARATOR).getBytes();
+        this.footer = footer == null ? null : (LINE_SEPARATOR + footer).getBytes();
         this.workDir=workDir;
     }
-    public final List<File> split(){
+
+    public static XMLInputFactory2 createInputFactory() {
+        return new WstxInputFactory();
+    }
+
+    /**
+     * An input factory whose readers fail with a {@link LimitExceededException} on elements nested deeper than
+     * maxElementDepth, or on a text node or attribute value of more than maxTextLength chars. The event api always
+     * holds a text node in one string. The {@link SplitEngine#CURSOR} engine streams the text of the chunks it writes
+     * as xml straight to the chunk, which the limit does not apply to.
+     * @param maxElementDepth 0 for the parser default
+     * @param maxTextLength 0 for the parser default
+     */
+    public static XMLInputFactory2 createInputFactory(int maxElementDepth, int maxTextLength) {
+        XMLInputFactory2 xmlInputFactory = createInputFactory();
+        if (maxElementDepth > 0) {
+            xmlInputFactory.setProperty(WstxInputProperties.P_MAX_ELEMENT_DEPTH, maxElementDepth);
+        }
+        if (maxTextLength > 0) {
+            xmlInputFactory.setProperty(WstxInputProperties.P_MAX_TEXT_LENGTH, maxTextLength);
+            xmlInputFactory.setProperty(WstxInputProperties.P_MAX_ATTRIBUTE_SIZE, maxTextLength);
+        }
+        return xmlInputFactory;
+    }
+
+    public static XMLOutputFactory2 createOutputFactory() {
+        XMLOutputFactory2 xmlOutputFactory = new WstxOutputFactory();
+        xmlOutputFactory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.FALSE);
+        // one writer is used for a whole chunk, which holds several top level elements
+        xmlOutputFactory.setProperty(WstxOutputProperties.P_OUTPUT_VALIDATE_STRUCTURE, Boolean.FALSE);
+        return xmlOutputFactory;
+    }
+
+    /**
+     * Split the whole input into temp files under the work dir, or java.io.tmpdir when no work dir is set.
+     * The caller owns the returned files. On failure the files written so far are deleted.
+     */
+    public final List<File> split() throws IOException {
         List<File> splitFiles =new LinkedList<File>();
-        List<OutputStream> openedStreams =new LinkedList<OutputStream>();
-        XMLEventReader xmlEventReader=null;
-        int depth=-1;
         try {
-            xmlEventReader = xmlInputFactory.createXMLEventReader(this.inputStream);
-            int count =0;
-            File tmpFile=null;
-            OutputStream outputStream =null;
-            while (true) {
-                XMLEvent event = xmlEventReader.nextEvent();
-                if (event.getEventType() == XMLStreamConstants.START_ELEMENT) {
-                    StartElement startElement = event.asStartElement();
-                    depth++ ;
-                    logger.debug("Start element: "+ startElement.getName().toString());
-                    if(depth==0){
-                        Writer writer=new StringWriter();
-                        // this is the root element, get namespace
-                        Iterator it = startElement.getNamespaces();
-                        while(it.hasNext()) {
-                            Object o = it.next();
-                            writer.write(o.toString()+"\n");
-                        }
-                        logger.debug("XML namesapce: \n"+writer.toString());
-                    }
-                    logger.debug("Current depth : " + depth +" current count :"+count + " splitDepth:"+ splitDepth + " splitCount: "+ splitCount);
-                    if(count ==0 && depth==splitDepth) {
-                        //create new file
-
-                        if(workDir!=null && workDir.toFile().exists()) {
-                            tmpFile = Files.createTempFile(workDir, PREFIX, SUFFIX).toFile();
-                        } else {
-                            tmpFile = Files.createTempFile(PREFIX, SUFFIX).toFile();
-                        }
-                        splitFiles.add(tmpFile);
-                        logger.debug("Create temp file:" + tmpFile.toPath().toAbsolutePath().toString());
-                        outputStream = new BufferedOutputStream(new FileOutputStream(tmpFile));
-                        openedStreams.add(outputStream);
-                        if(this.header!=null) {
-                            outputStream.write(this.header.getBytes());
-                            outputStream.write(LINE_SEPARATOR.getBytes());
-                        }
-                    }
-                    if (depth == splitDepth) {
-                        count++;
-                        logger.debug("Current element count: " + count);
-                        writeNode(xmlEventReader, event, outputStream);
-                        // we get duplicate for current element
-                        depth--;
-                    }
-                    if (count == splitCount) {
-                        //reset count
-                        count = 0;
-
-                        if(this.footer!=null) {
-                            outputStream.write(LINE_SEPARATOR.getBytes());
-                            outputStream.write(this.footer.getBytes());
-                        }
-                        logger.debug("Close output stream for file"+tmpFile.getName());
-                        outputStream.flush();
-                        if(outputStream!=null) {
-                            try {
-                                outputStream.close();
-                            }catch(Exception e){
-
-                            }
-                        }
-                    }
+            while (hasNext()) {
+                //create new file
+                File tmpFile;
+                if(workDir!=null && workDir.toFile().exists()) {
+                    tmpFile = Files.createTempFile(workDir, PREFIX, SUFFIX).toFile();
+                } else {
+                    tmpFile = Files.createTempFile(PREFIX, SUFFIX).toFile();
+                }
+                splitFiles.add(tmpFile);
+                logger.debug("Create temp file: {}", tmpFile);
+                try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                    writeNext(outputStream);
                 }
-                if (event.getEventType() == XMLStreamConstants.END_ELEMENT){
-                    EndElement endElement=event.asEndElement();
-                    depth--;
-                    logger.debug("EndElement:"+endElement.getName().toString());
-                    logger.debug("Current depth : " + depth +" current count :"+count + " splitDepth:"+ splitDepth + " splitCount: "+ splitCount);
+                logger.debug("Close output stream for file {}", tmpFile);
+            }
+        } catch (IOException e) {
+            for (File file : splitFiles) {
+                if (!file.delete()) {
+                    logger.warn("Failed to delete temp file {}", file);
+                }
+            }
+            throw e;
+        } finally {
+            close();
+        }
+        return splitFiles;
+     }
+
+    /**
+     * Select the parser engine, must be called before the first chunk is pulled. Defaults to {@link SplitEngine#EVENT}.
+     */
+    public void setEngine(SplitEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Close a chunk at the next element boundary once it holds this many bytes, 0 for no size limit.
+     * A split count of 0 or less leaves the chunks bounded by size only.
+     */
+    public void setMaxSplitSize(long maxSplitSize) {
+        this.maxSplitSize = maxSplitSize;
+    }
 
+    /**
+     * Fail with a {@link LimitExceededException} once a split element spans more than this many input chars, 0 for no
+     * limit. The element is checked while it is copied, so it is never held in full, but what was copied of it
+     * stays in the current chunk. Must be called before the first chunk is pulled.
+     */
+    public void setMaxElementSize(long maxElementSize) {
+        this.maxElementSize = maxElementSize;
+    }
+
+    /**
+     * Wrap every chunk in the xml declaration and the ancestors of its elements as found in the input, instead of
+     * the configured header and footer. A chunk is closed early where the ancestors change, so all of its elements
+     * share the same ancestors. Must be called before the first chunk is pulled.
+     */
+    public void setWrapInAncestors(boolean wrapInAncestors) {
+        this.wrapInAncestors = wrapInAncestors;
+    }
+
+    /**
+     * Split the elements selected by the path instead of all elements at split depth, subtrees that cannot hold a
+     * selected element are skipped without being copied. Must be called before the first chunk is pulled.
+     */
+    public void setElementPath(ElementPath elementPath) {
+        this.elementPath = elementPath;
+    }
+
+    /**
+     * Key to partition the elements by in {@link #splitPartitioned(int, PartitionConsumer)}, must be called before the
+     * first chunk is pulled.
+     */
+    public void setPartitionKey(PartitionKey partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    /**
+     * Key whose first and last value in a chunk goes to its {@link ChunkIndex}, cannot be combined with a partition
+     * key. Needs the {@link SplitEngine#CURSOR} or {@link SplitEngine#VERBATIM} engine and is not kept by
+     * {@link #writeNextRecords(ElementConsumer)}. Must be called before the first chunk is pulled.
+     */
+    public void setChunkKey(PartitionKey chunkKey) {
+        this.chunkKey = chunkKey;
+    }
+
+    /**
+     * Schema to validate the input against in {@link #splitValidated(ChunkConsumer, InvalidConsumer)}, a problem is
+     * charged to the element it was found in instead of failing the split. Needs the {@link SplitEngine#CURSOR} or
+     * {@link SplitEngine#VERBATIM} engine. Must be called before the first chunk is pulled.
+     */
+    public void setSchema(XMLValidationSchema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * Compress every chunk, the chunks of {@link #splitParallel(ExecutorService, int, ChunkConsumer)} on the executor.
+     * Max Split Size still counts the uncompressed bytes.
+     * @param level 0 to 9
+     */
+    public void setOutputCompression(Compression outputCompression, int level) {
+        this.outputCompression = outputCompression;
+        this.compressionLevel = level;
+    }
+
+    /**
+     * Keep a checkpoint after every chunk, see {@link #getCheckpoint()}. Needs the {@link SplitEngine#CURSOR} or
+     * {@link SplitEngine#VERBATIM} engine, not kept by {@link #splitPartitioned(int, PartitionConsumer)}. Must be
+     * called before the first chunk is pulled.
+     */
+    public void setCheckpoints(boolean checkpoints) {
+        this.checkpoints = checkpoints;
+    }
+
+    /**
+     * Skip the input up to a checkpoint of an earlier split of the same input, the first chunk starts at the element
+     * it points to. The skipped part is decoded but not parsed. Must be called before the first chunk is pulled.
+     */
+    public void resumeFrom(Checkpoint checkpoint) {
+        this.resumeFrom = checkpoint;
+    }
+
+    /**
+     * Where to resume the split after the last chunk written or passed to a consumer, null before the first chunk
+     * and once the input is exhausted.
+     */
+    public Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Index of the last chunk written or passed to a consumer, null before the first chunk. Not kept by
+     * {@link #splitRanges(ExecutorService, int, int, ChunkConsumer)} or {@link #splitPartitioned(int, PartitionConsumer)},
+     * whose chunks do not span one range of the input.
+     */
+    public ChunkIndex getLastChunk() {
+        return lastChunk;
+    }
+
+    /**
+     * Advance to the next element to split.
+     * @return true if there is at least one more element to split
+     */
+    public boolean hasNext() throws IOException {
+        try {
+            if (source == null) {
+                source = createSource();
+                source.setWrapInAncestors(wrapInAncestors);
+                source.setMaxElementSize(maxElementSize);
+                if (elementPath != null) {
+                    source.setElementPath(elementPath);
+                }
+                if (partitionKey != null) {
+                    source.setPartitionKey(partitionKey);
+                } else if (chunkKey != null) {
+                    source.setPartitionKey(chunkKey);
                 }
+                if (schema != null) {
+                    source.setSchema(schema);
+                }
+            }
+            final boolean next = source.next();
+            if (checkpoints && source.doctype) {
+                // a resumed split would be parsed without the entities and attribute defaults of the dtd
+                throw new IOException("A document with a DOCTYPE cannot be checkpointed");
+            }
+            return next;
+        } catch (XMLStreamException | WstxLazyException e) {
+            throw failure(e);
+        }
+    }
 
-                if(event.getEventType()==XMLStreamConstants.END_DOCUMENT) {
-                    //not finishing count
-                    if(count < splitCount && count!=0) {
-                        if(this.footer!=null) {
-                            outputStream.write(LINE_SEPARATOR.getBytes());
-                            outputStream.write(this.footer.getBytes());
-                        }
-                        outputStream.flush();
-                        if(outputStream!=null) {
-                            logger.debug("Close output stream for file "+tmpFile.getName());
-                            try {
-                                outputStream.close();
-                            }catch(Exception e){
+    private ElementSource createSource() throws XMLStreamException, IOException {
+        if (checkpoints && engine == SplitEngine.EVENT) {
+            // the event api reports int offsets
+            throw new IOException("The " + engine + " engine cannot checkpoint");
+        }
+        final InputStream in = resumeFrom == null ? inputStream : resume(resumeFrom);
+        final ElementSource source;
+        switch (engine) {
+            case CURSOR:
+                source = new CursorElementSource(xmlInputFactory, xmlOutputFactory, in, splitDepth);
+                break;
+            case VERBATIM:
+                final VerbatimElementSource verbatim = new VerbatimElementSource(xmlInputFactory, in, splitDepth);
+                verbatim.countClosed(rangeLevel);
+                source = verbatim;
+                break;
+            default:
+                source = new EventElementSource(xmlInputFactory, xmlOutputFactory, in, splitDepth);
+        }
+        source.setTrackAncestors(checkpoints);
+        return source;
+    }
 
-                            }
-                        }
-                     }
+    /**
+     * The input from the checkpoint on, behind an xml declaration and the start tags of the ancestors.
+     */
+    private InputStream resume(Checkpoint from) throws IOException {
+        final InputStream buffered = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+        final Charset charset = VerbatimElementSource.detectCharset(buffered);
+        final PushbackInputStream in = new PushbackInputStream(buffered, SKIP_BUFFER);
+        long skip = from.getBaseBytes();
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Input ends before the checkpoint");
+                }
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+        final long bytes = skipChars(in, charset, from.getOffset() - from.getBaseChars());
+        final String standalone = from.getStandalone().isEmpty() ? "" : " standalone=\"" + from.getStandalone() + "\"";
+        final String prologue = "<?xml version=\"" + from.getVersion() + "\" encoding=\"" + charset.name() + "\"" + standalone + "?>"
+                + from.getAncestors();
+        resumeOffset = from.getOffset();
+        resumePrologue = prologue.length();
+        baseChars = from.getOffset();
+        baseBytes = from.getBaseBytes() + bytes;
+        baseElements = from.getElements();
+        // utf-16 was detected from a byte order mark, the resumed input needs one as well
+        final String mark = charset.name().startsWith("UTF-16") ? "\uFEFF" : "";
+        return new SequenceInputStream(new ByteArrayInputStream((mark + prologue).getBytes(charset)), in);
+    }
+
+    /**
+     * Decode and drop chars, bytes read past them are pushed back.
+     * @return number of bytes the chars took
+     */
+    private static long skipChars(PushbackInputStream in, Charset charset, long chars) throws IOException {
+        final CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer bytes = ByteBuffer.allocate(SKIP_BUFFER);
+        final CharBuffer decoded = CharBuffer.allocate(SKIP_BUFFER);
+        long consumed = 0;
+        while (chars > 0) {
+            final int read = in.read(bytes.array(), bytes.position(), bytes.remaining());
+            if (read < 0) {
+                throw new EOFException("Input ends before the checkpoint");
+            }
+            bytes.position(bytes.position() + read);
+            bytes.flip();
+            decoded.clear();
+            decoded.limit((int) Math.min(decoded.capacity(), chars));
+            decoder.decode(bytes, decoded, false);
+            if (read == 0 && decoded.position() == 0) {
+                throw new IOException("Checkpoint is not on a char boundary");
+            }
+            consumed += bytes.position();
+            chars -= decoded.position();
+            bytes.compact();
+        }
+        bytes.flip();
+        in.unread(bytes.array(), 0, bytes.limit());
+        return consumed;
+    }
+
+    /**
+     * Offset in the input of an offset the source reported, which is shifted by the start tags a resumed split is
+     * parsed in.
+     */
+    private long inputOffset(long offset) {
+        return offset < 0 ? -1 : resumeOffset + offset - resumePrologue;
+    }
+
+    /**
+     * Checkpoint at the next element, null if there is none.
+     */
+    private Checkpoint position() throws IOException {
+        if (!hasNext()) {
+            return null;
+        }
+        return new Checkpoint(inputOffset(source.elementOffset), baseChars, baseBytes,
+                baseElements + metrics.elementsEmitted, source.getVersion(), source.getStandalone(), source.getAncestorTags());
+    }
 
+    /**
+     * Write the next chunk of up to splitCount elements, wrapped in header and footer, to the given stream.
+     * The stream is flushed but not closed.
+     * @return number of elements written, 0 if there was nothing left to split
+     */
+    public int writeNext(OutputStream outputStream) throws IOException {
+        if (!hasNext()) {
+            return 0;
+        }
+        final OutputStream target = compressed(outputStream);
+        chunk.reset(target);
+        final int ancestors = source.getAncestorsVersion();
+        final byte[] header = header();
+        final byte[] footer = footer();
+        write(chunk, header);
+        final long started = System.nanoTime();
+        final ChunkIndexer index = new ChunkIndexer(chunkKey != null);
+        long copy = 0;
+        int count = 0;
+        try {
+            source.beginChunk(chunk);
+            do {
+                count++;
+                final boolean sampled = sampled();
+                final long start = sampled ? System.nanoTime() : 0;
+                source.copy();
+                index.copied();
+                if (maxSplitSize > 0) {
+                    source.flush();
+                }
+                if (sampled) {
+                    copy += (System.nanoTime() - start) * COPY_SAMPLE;
+                }
+                if (maxSplitSize > 0 && chunk.getCount() >= maxSplitSize) {
                     break;
                 }
+            } while ((splitCount <= 0 || count < splitCount) && hasNext() && source.getAncestorsVersion() == ancestors);
+            source.endChunk();
+            timed(started, copy, 0);
+        } catch (XMLStreamException | WstxLazyException e) {
+            throw failure(e);
+        }
+        write(chunk, footer);
+        chunk.reset(null);
+        if (target != outputStream) {
+            // finishes the compressed data, the stream stays open
+            target.close();
+        }
+        outputStream.flush();
+        metrics.elementsEmitted += count;
+        lastChunk = index.build();
+        if (checkpoints) {
+            checkpoint = position();
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Wrote chunk of {} elements", count);
+        }
+        return count;
+    }
+
+    /**
+     * Pass the next chunk of up to splitCount elements to the consumer, each element mapped to fields instead of
+     * being written as xml. Max Split Size is measured on the input chars of the elements. Needs the
+     * {@link SplitEngine#CURSOR} or {@link SplitEngine#VERBATIM} engine.
+     * @return number of elements passed, 0 if there was nothing left to split
+     */
+    public int writeNextRecords(ElementConsumer consumer) throws IOException {
+        if (!hasNext()) {
+            return 0;
+        }
+        final int ancestors = source.getAncestorsVersion();
+        final long started = System.nanoTime();
+        final ChunkIndexer index = new ChunkIndexer(false);
+        long copy = 0;
+        long size = 0;
+        int count = 0;
+        try {
+            do {
+                count++;
+                final boolean sampled = sampled();
+                final long start = sampled ? System.nanoTime() : 0;
+                size += source.read(consumer);
+                index.copied();
+                if (sampled) {
+                    copy += (System.nanoTime() - start) * COPY_SAMPLE;
+                }
+            } while ((splitCount <= 0 || count < splitCount) && (maxSplitSize <= 0 || size < maxSplitSize) && hasNext()
+                    && source.getAncestorsVersion() == ancestors);
+            timed(started, copy, 0);
+        } catch (XMLStreamException | WstxLazyException e) {
+            throw failure(e);
+        }
+        metrics.elementsEmitted += count;
+        lastChunk = index.build();
+        if (checkpoints) {
+            checkpoint = position();
+        }
+        return count;
+    }
+
+    /**
+     * Split the whole input, serializing the chunks on the given executor. The calling thread parses and
+     * captures the elements of each chunk, at most queueSize chunks are in flight at any time, and the
+     * consumer gets the serialized chunks in document order on the calling thread.
+     * @return number of chunks
+     */
+    public int splitParallel(ExecutorService executor, int queueSize, ChunkConsumer consumer) throws IOException {
+        final Deque<PendingChunk> inFlight = new ArrayDeque<>(queueSize);
+        final long started = System.nanoTime();
+        long copy = 0;
+        // waiting for the writers and the consumer, not scanning
+        long completing = 0;
+        int chunks = 0;
+        try {
+            while (hasNext()) {
+                final CapturedChunk captured = source.newCapturedChunk();
+                final int ancestors = source.getAncestorsVersion();
+                final byte[] header = header();
+                final byte[] footer = footer();
+                final ChunkIndexer index = new ChunkIndexer(chunkKey != null);
+                long size = 0;
+                int count = 0;
+                do {
+                    count++;
+                    final boolean sampled = sampled();
+                    final long start = sampled ? System.nanoTime() : 0;
+                    size += captured.capture();
+                    index.copied();
+                    if (sampled) {
+                        copy += (System.nanoTime() - start) * COPY_SAMPLE;
+                    }
+                } while ((splitCount <= 0 || count < splitCount) && (maxSplitSize <= 0 || size < maxSplitSize) && hasNext()
+                        && source.getAncestorsVersion() == ancestors);
+                metrics.elementsEmitted += count;
+                final Checkpoint after = checkpoints ? position() : null;
+                inFlight.add(new PendingChunk(executor.submit(() -> serialize(header, captured, footer)), count, after, index.build()));
+                chunks++;
+                if (inFlight.size() >= queueSize) {
+                    long start = System.nanoTime();
+                    complete(inFlight.poll(), consumer);
+                    completing += System.nanoTime() - start;
+                }
             }
-        } catch (XMLStreamException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.poll(), consumer);
+            }
+            timed(started, copy, completing);
+        } catch (XMLStreamException | WstxLazyException e) {
+            throw failure(e);
         } finally {
-            if(xmlEventReader!=null) {
-                try {
-                    xmlEventReader.close();
-                }catch (Exception e){}
+            for (PendingChunk pendingChunk : inFlight) {
+                pendingChunk.future.cancel(true);
             }
         }
-        return splitFiles;
-     }
+        return chunks;
+    }
 
-    protected void writeNode(XMLEventReader xmlEventReader, XMLEvent startEvent, OutputStream outputStream) {
+    /**
+     * Split the whole input by parsing ranges of about rangeSize bytes on the given executor, for huge inputs of
+     * repetitive elements. The calling thread reads the input and cuts it where a start tag with the name of the
+     * first split element begins. Every range is parsed behind the xml declaration and the start tags of the ancestors of that
+     * element and closed by their end tags. A range only counts if it parses as content of those ancestors, which
+     * proves that the cut after it falls between two of their children; if it does not, the rest of the input from
+     * the last proven cut is split serially. A chunk never spans two ranges, so every range can end in a smaller one.
+     * Needs the {@link SplitEngine#VERBATIM} engine and an input without a DTD in an encoding that keeps ascii in
+     * single bytes, anything else is split serially. At most queueSize ranges are in flight, the consumer gets the
+     * chunks in document order on the calling thread.
+     * @return number of chunks
+     */
+    public int splitRanges(ExecutorService executor, int rangeSize, int queueSize, ChunkConsumer consumer) throws IOException {
+        if (checkpoints || partitionKey != null) {
+            throw new IllegalStateException("Ranges cannot be checkpointed or partitioned");
+        }
+        if (engine != SplitEngine.VERBATIM || resumeFrom != null || source != null) {
+            return splitSerial(consumer);
+        }
+        final RangeReader reader = new RangeReader(inputStream, rangeSize);
+        reader.fill(rangeSize);
+        byte[] prologue = null;
+        byte[] epilogue = null;
+        byte[] marker = null;
+        int ancestors = 0;
+        if (!reader.exhausted && indexOf(reader.buffer, reader.length, DOCTYPE, 0) < 0) {
+            VerbatimElementSource probe = null;
+            try {
+                // finds the first split element and its ancestors in the first range
+                probe = new VerbatimElementSource(xmlInputFactory, new ByteArrayInputStream(reader.buffer, 0, reader.length), splitDepth);
+                probe.setTrackAncestors(true);
+                if (elementPath != null) {
+                    probe.setElementPath(elementPath);
+                }
+                if (probe.next() && isAsciiCompatible(probe.getOutputCharset())) {
+                    prologue = probe.getPrologue();
+                    epilogue = probe.getEpilogue();
+                    marker = ('<' + probe.getElementName()).getBytes(probe.getOutputCharset());
+                    ancestors = probe.depth;
+                }
+            } catch (XMLStreamException | WstxLazyException e) {
+                // the first range ends before the first split element
+            } finally {
+                if (probe != null) {
+                    probe.close();
+                }
+            }
+        }
+        if (marker == null) {
+            inputStream = reader.remaining();
+            return splitSerial(consumer);
+        }
 
-        StartElement element = startEvent.asStartElement();
-        QName name = element.getName();
+        final Deque<PendingRange> inFlight = new ArrayDeque<>(queueSize);
+        int chunks = 0;
+        try {
+            final byte[] rangePrologue = prologue;
+            final byte[] rangeEpilogue = epilogue;
+            final int rangeAncestors = ancestors;
+            byte[] range;
+            boolean first = true;
+            while ((range = reader.next(marker)) != null) {
+                final byte[] bytes = range;
+                final boolean head = first;
+                final boolean last = reader.exhausted && reader.length == 0;
+                inFlight.add(new PendingRange(bytes, head,
+                        executor.submit(() -> splitRange(bytes, head, last, rangePrologue, rangeEpilogue, rangeAncestors))));
+                first = false;
+                if (inFlight.size() >= queueSize) {
+                    final PendingRange pending = inFlight.poll();
+                    final RangeResult result = result(pending);
+                    if (result == null) {
+                        return chunks + splitRest(pending, inFlight, reader, prologue, consumer);
+                    }
+                    chunks += emit(result, consumer);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                final PendingRange pending = inFlight.poll();
+                final RangeResult result = result(pending);
+                if (result == null) {
+                    return chunks + splitRest(pending, inFlight, reader, prologue, consumer);
+                }
+                chunks += emit(result, consumer);
+            }
+        } finally {
+            for (PendingRange pending : inFlight) {
+                pending.future.cancel(true);
+            }
+        }
+        return chunks;
+    }
 
-        int stack = 1;
-        XMLEventWriter writer =null;
+    /**
+     * Split one range with the settings of this splitter.
+     * @return the chunks, null if the range did not parse as content of the ancestors
+     */
+    private RangeResult splitRange(byte[] range, boolean first, boolean last, byte[] prologue, byte[] epilogue, int ancestors) {
+        InputStream in = new ByteArrayInputStream(range);
+        if (!first) {
+            in = new SequenceInputStream(new ByteArrayInputStream(prologue), in);
+        }
+        if (!last) {
+            in = new SequenceInputStream(in, new ByteArrayInputStream(epilogue));
+        }
+        final XMLSplitByCountUtil splitter = forRange(in);
+        // the first range opens the ancestors itself, its count starts at the first split element
+        splitter.rangeLevel = first ? 0 : ancestors;
+        final RangeResult result = new RangeResult();
         try {
-            writer = this.xmlOutputFactory.createXMLEventWriter(outputStream);
-            writer.add(element);
-            while (true) {
-                XMLEvent event = xmlEventReader.nextEvent();
-                if (event.isStartElement()
-                        && event.asStartElement().getName().equals(name))
-                    stack++;
-                if (event.isEndElement()) {
-                    EndElement end = event.asEndElement();
-                    if (end.getName().equals(name)) {
-                        stack--;
-                        if (stack == 0) {
-                            writer.add(event);
-                            break;
-                        }
+            while (splitter.hasNext()) {
+                if (first && result.chunks.isEmpty()) {
+                    ((VerbatimElementSource) splitter.source).countClosed(ancestors);
+                }
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                result.counts.add(splitter.writeNext(bytes));
+                result.chunks.add(bytes.toByteArray());
+            }
+            // any other end tag above the split elements means the range left the ancestors
+            if (!last && ((VerbatimElementSource) splitter.source).getClosed() != ancestors) {
+                return null;
+            }
+        } catch (IOException | WstxLazyException e) {
+            // cut inside markup or an element, or the input is broken, which the serial split reports
+            return null;
+        } finally {
+            splitter.close();
+        }
+        result.metrics = splitter.getMetrics();
+        if (!first) {
+            result.metrics.elementsScanned -= ancestors;
+        }
+        return result;
+    }
+
+    /**
+     * Split the input from the start of a range that did not parse serially, the ranges after it are dropped.
+     */
+    private int splitRest(PendingRange failed, Deque<PendingRange> inFlight, RangeReader reader, byte[] prologue,
+                          ChunkConsumer consumer) throws IOException {
+        final List<InputStream> parts = new ArrayList<>();
+        if (!failed.first) {
+            parts.add(new ByteArrayInputStream(prologue));
+        }
+        parts.add(new ByteArrayInputStream(failed.range));
+        for (PendingRange pending : inFlight) {
+            pending.future.cancel(true);
+            parts.add(new ByteArrayInputStream(pending.range));
+        }
+        inFlight.clear();
+        parts.add(reader.remaining());
+        logger.debug("Range does not parse on its own, splitting the rest serially");
+        final XMLSplitByCountUtil rest = forRange(new SequenceInputStream(Collections.enumeration(parts)));
+        try {
+            return rest.splitSerial(consumer);
+        } finally {
+            rest.close();
+            merge(rest.getMetrics());
+        }
+    }
+
+    private int splitSerial(ChunkConsumer consumer) throws IOException {
+        int chunks = 0;
+        while (hasNext()) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final int count = writeNext(bytes);
+            long start = System.nanoTime();
+            consumer.accept(bytes.toByteArray(), count);
+            metrics.consumerNanos += System.nanoTime() - start;
+            chunks++;
+        }
+        return chunks;
+    }
+
+    /**
+     * A splitter for part of the input with the settings of this one.
+     */
+    private XMLSplitByCountUtil forRange(InputStream in) {
+        final XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(xmlInputFactory, xmlOutputFactory, null, in, splitDepth, splitCount, null, null);
+        splitter.header = header;
+        splitter.footer = footer;
+        splitter.engine = engine;
+        splitter.maxSplitSize = maxSplitSize;
+        splitter.maxElementSize = maxElementSize;
+        splitter.wrapInAncestors = wrapInAncestors;
+        splitter.elementPath = elementPath;
+        splitter.outputCompression = outputCompression;
+        splitter.compressionLevel = compressionLevel;
+        return splitter;
+    }
+
+    private RangeResult result(PendingRange pending) throws IOException {
+        try {
+            return pending.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a range to be split");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private int emit(RangeResult result, ChunkConsumer consumer) throws IOException {
+        for (int i = 0; i < result.chunks.size(); i++) {
+            long start = System.nanoTime();
+            consumer.accept(result.chunks.get(i), result.counts.get(i));
+            metrics.consumerNanos += System.nanoTime() - start;
+        }
+        merge(result.metrics);
+        return result.chunks.size();
+    }
+
+    /**
+     * Add the statistics of a range, its times add up with the other ranges split at the same time.
+     */
+    private void merge(SplitMetrics range) {
+        metrics.elementsScanned += range.elementsScanned;
+        metrics.elementsEmitted += range.elementsEmitted;
+        metrics.largestElement = Math.max(metrics.largestElement, range.largestElement);
+        metrics.peakDepth = Math.max(metrics.peakDepth, range.peakDepth);
+        metrics.scanNanos += range.scanNanos;
+        metrics.copyNanos += range.copyNanos;
+        metrics.serializeNanos.addAndGet(range.serializeNanos.get());
+        metrics.consumerNanos += range.consumerNanos;
+        rangeIoNanos += range.chunkIoNanos;
+    }
+
+    /**
+     * The exception a parser failure is reported as, a {@link LimitExceededException} if it broke a limit. The text of a
+     * lazily parsed event can fail in any accessor with a runtime exception.
+     */
+    private static IOException failure(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof LimitExceededException) {
+                return new LimitExceededException(cause.getMessage(), e);
+            }
+        }
+        if (e.getMessage() != null && WOODSTOX_LIMIT.matcher(e.getMessage()).find()) {
+            return new LimitExceededException(e.getMessage(), e);
+        }
+        return new IOException(e);
+    }
+
+    /**
+     * Whether every ascii char is one byte of the same value and no other char contains such a byte.
+     */
+    private static boolean isAsciiCompatible(Charset charset) {
+        final String name = charset.name();
+        return name.equals("UTF-8") || name.equals("US-ASCII") || name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+    }
+
+    private static int indexOf(byte[] bytes, int length, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Split the whole input in a single pass into chunks of elements with the same partition key. One chunk per key
+     * is kept open in memory until it is full; opening a chunk while maxOpen are open closes the least recently used
+     * one early. Max Split Size is measured in chars here. Needs the {@link SplitEngine#CURSOR} or
+     * {@link SplitEngine#VERBATIM} engine.
+     * @return number of chunks
+     */
+    public int splitPartitioned(int maxOpen, PartitionConsumer consumer) throws IOException {
+        if (partitionKey == null) {
+            throw new IllegalStateException("No partition key set");
+        }
+        if (checkpoints) {
+            // open partitions hold elements from before the position of the parser
+            throw new IllegalStateException("Partitioned splits cannot be checkpointed");
+        }
+        return splitRouted(maxOpen, false, (partition, chunk) -> consumer.accept(partition.key, chunk, partition.count));
+    }
+
+    /**
+     * Split the whole input in a single pass, validating it against the schema set with
+     * {@link #setSchema(XMLValidationSchema)}. Elements with a validation problem go to chunks of their own, passed to
+     * the invalid consumer with the first problem found in them. A problem between two split elements is charged to
+     * the element after it, a problem after the last one is kept in {@link #getTrailingProblem()}. Both chunks are
+     * kept open in memory until they are full, Max Split Size is measured in chars here. Needs the
+     * {@link SplitEngine#CURSOR} or {@link SplitEngine#VERBATIM} engine.
+     * @return number of chunks
+     */
+    public int splitValidated(ChunkConsumer valid, InvalidConsumer invalid) throws IOException {
+        if (schema == null) {
+            throw new IllegalStateException("No schema set");
+        }
+        if (checkpoints || partitionKey != null) {
+            throw new IllegalStateException("Validated splits cannot be checkpointed or partitioned");
+        }
+        final int chunks = splitRouted(2, true, (partition, chunk) -> {
+            if (partition.problem == null) {
+                valid.accept(chunk, partition.count);
+            } else {
+                invalid.accept(chunk, partition.count, partition.problem);
+            }
+        });
+        trailingProblem = source.takeProblem();
+        return chunks;
+    }
+
+    /**
+     * First validation problem after the last split element, which no element is charged with, null if there was none.
+     */
+    public String getTrailingProblem() {
+        return trailingProblem;
+    }
+
+    /**
+     * Capture every element on its own and add it to the open chunk of its partition key, or of its validity.
+     */
+    private int splitRouted(int maxOpen, boolean validate, RoutedConsumer consumer) throws IOException {
+        // access ordered, the eldest entry is the least recently used partition
+        final LinkedHashMap<String, Partition> open = new LinkedHashMap<>(16, 0.75f, true);
+        final long started = System.nanoTime();
+        final long consumed = metrics.consumerNanos;
+        long copy = 0;
+        int chunks = 0;
+        try {
+            TextCapturedChunk element = null;
+            int ancestors = 0;
+            while (hasNext()) {
+                if (element == null) {
+                    CapturedChunk captured = source.newCapturedChunk();
+                    if (!(captured instanceof TextCapturedChunk)) {
+                        throw new IOException("The " + engine + " engine cannot " + (validate ? "validate" : "partition") + " elements");
                     }
+                    element = (TextCapturedChunk) captured;
+                    ancestors = source.getAncestorsVersion();
+                }
+                if (source.getAncestorsVersion() != ancestors) {
+                    // open partitions are wrapped in the previous ancestors
+                    chunks += closeAll(open, consumer);
+                    ancestors = source.getAncestorsVersion();
+                }
+                element.reset();
+                final boolean sampled = sampled();
+                final long start = sampled ? System.nanoTime() : 0;
+                element.capture();
+                if (sampled) {
+                    copy += (System.nanoTime() - start) * COPY_SAMPLE;
+                }
+                metrics.elementsEmitted++;
+                final String problem = validate ? source.takeProblem() : null;
+                final String key = validate ? (problem == null ? "valid" : "invalid") : source.getPartitionKey();
+                Partition partition = open.get(key);
+                if (partition == null) {
+                    if (open.size() >= maxOpen) {
+                        final Iterator<Partition> eldest = open.values().iterator();
+                        close(eldest.next(), consumer);
+                        eldest.remove();
+                        chunks++;
+                    }
+                    partition = new Partition(key, header(), footer());
+                    partition.problem = problem;
+                    open.put(key, partition);
+                }
+                element.getBuffer().writeTo(partition.buffer);
+                partition.count++;
+                if ((splitCount > 0 && partition.count >= splitCount) || (maxSplitSize > 0 && partition.buffer.size() >= maxSplitSize)) {
+                    open.remove(key);
+                    close(partition, consumer);
+                    chunks++;
+                }
+            }
+            chunks += closeAll(open, consumer);
+            timed(started, copy, metrics.consumerNanos - consumed);
+        } catch (XMLStreamException | WstxLazyException e) {
+            throw failure(e);
+        }
+        return chunks;
+    }
+
+    private int closeAll(Map<String, Partition> open, RoutedConsumer consumer) throws IOException {
+        final int chunks = open.size();
+        for (Partition partition : open.values()) {
+            close(partition, consumer);
+        }
+        open.clear();
+        return chunks;
+    }
+
+    private void close(Partition partition, RoutedConsumer consumer) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(partition.buffer.size() + 256);
+        final OutputStream out = compressed(bytes);
+        write(out, partition.header);
+        final Writer writer = new EncodingWriter(out, source.getOutputCharset());
+        partition.buffer.writeTo(writer);
+        writer.flush();
+        write(out, partition.footer);
+        out.close();
+        long start = System.nanoTime();
+        consumer.accept(partition, bytes.toByteArray());
+        metrics.consumerNanos += System.nanoTime() - start;
+    }
+
+    private byte[] serialize(byte[] header, CapturedChunk captured, byte[] footer) throws IOException, XMLStreamException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = compressed(bytes);
+        write(out, header);
+        captured.writeTo(out);
+        write(out, footer);
+        out.close();
+        metrics.serializeNanos.addAndGet(System.nanoTime() - start);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Compressing view of the stream, the stream itself without output compression.
+     */
+    private OutputStream compressed(OutputStream outputStream) throws IOException {
+        return outputCompression == Compression.NONE ? outputStream : outputCompression.compress(outputStream, compressionLevel);
+    }
+
+    private void complete(PendingChunk pendingChunk, ChunkConsumer consumer) throws IOException {
+        final byte[] chunk;
+        try {
+            chunk = pendingChunk.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk to be serialized");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        long start = System.nanoTime();
+        checkpoint = pendingChunk.checkpoint;
+        lastChunk = pendingChunk.index;
+        consumer.accept(chunk, pendingChunk.count);
+        metrics.consumerNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Whether to time the copy of the next element. Reading the clock twice per element is a measurable share of
+     * the split, so one element in {@link #COPY_SAMPLE} is timed and stands for the others.
+     */
+    private boolean sampled() {
+        return (++copies & (COPY_SAMPLE - 1)) == 0;
+    }
+
+    /**
+     * Book the time since started: copy and consumer time as measured, the rest as scanning. Timing the chunk as a
+     * whole keeps the clock out of the scan loop.
+     */
+    private void timed(long started, long copy, long consumer) {
+        metrics.copyNanos += copy;
+        metrics.scanNanos += Math.max(0, System.nanoTime() - started - copy - consumer);
+    }
+
+    private byte[] header() {
+        return wrapInAncestors ? source.getPrologue() : header;
+    }
+
+    private byte[] footer() {
+        return wrapInAncestors ? source.getEpilogue() : footer;
+    }
+
+    private static void write(OutputStream outputStream, byte[] bytes) throws IOException {
+        if(bytes!=null) {
+            outputStream.write(bytes);
+        }
+    }
+
+    /**
+     * Receives the closed chunks of {@link #splitRouted(int, boolean, RoutedConsumer)}.
+     */
+    private interface RoutedConsumer {
+        void accept(Partition partition, byte[] chunk) throws IOException;
+    }
+
+    private static class Partition {
+        private final String key;
+        private final byte[] header;
+        private final byte[] footer;
+        private final CharArrayWriter buffer = new CharArrayWriter(8192);
+        private int count;
+        // first validation problem of the elements, null for valid ones
+        private String problem;
+
+        private Partition(String key, byte[] header, byte[] footer) {
+            this.key = key;
+            this.header = header;
+            this.footer = footer;
+        }
+    }
+
+    /**
+     * Reads the input for {@link #splitRanges(ExecutorService, int, int, ChunkConsumer)}, the buffer starts at the
+     * next range.
+     */
+    private static class RangeReader {
+        private final InputStream in;
+        private final int rangeSize;
+        private byte[] buffer;
+        private int length;
+        private boolean exhausted;
+
+        private RangeReader(InputStream in, int rangeSize) {
+            this.in = in;
+            this.rangeSize = rangeSize;
+            this.buffer = new byte[rangeSize];
+        }
+
+        /**
+         * Read until the buffer holds count bytes or the input ends.
+         */
+        private void fill(int count) throws IOException {
+            if (count > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(count, buffer.length * 2));
+            }
+            while (length < count && !exhausted) {
+                final int read = in.read(buffer, length, count - length);
+                if (read < 0) {
+                    exhausted = true;
+                } else {
+                    length += read;
+                }
+            }
+        }
+
+        /**
+         * The bytes up to the first start tag with the marked name after rangeSize bytes, or up to the end of the
+         * input. Null once the input is used up.
+         */
+        private byte[] next(byte[] marker) throws IOException {
+            fill(rangeSize);
+            if (length == 0) {
+                return null;
+            }
+            int from = rangeSize;
+            int cut;
+            while ((cut = findStartTag(marker, from)) < 0) {
+                if (exhausted) {
+                    cut = length;
+                    break;
+                }
+                from = Math.max(from, length - marker.length);
+                fill(length + rangeSize);
+            }
+            final byte[] range = Arrays.copyOf(buffer, cut);
+            System.arraycopy(buffer, cut, buffer, 0, length - cut);
+            length -= cut;
+            return range;
+        }
+
+        private int findStartTag(byte[] marker, int from) {
+            int i = from;
+            while ((i = indexOf(buffer, length - 1, marker, i)) >= 0) {
+                final byte next = buffer[i + marker.length];
+                if (next == ' ' || next == '\t' || next == '\r' || next == '\n' || next == '/' || next == '>') {
+                    return i;
                 }
-                writer.add(event);
+                i++;
             }
-            writer.close();
-        } catch (XMLStreamException e) {
-            e.printStackTrace();
-        }finally {
-            if(writer!=null) {
-                try {
-                    writer.close();
-                } catch (Exception e) {
+            return -1;
+        }
+
+        /**
+         * The buffered bytes followed by the rest of the input.
+         */
+        private InputStream remaining() {
+            return new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), in);
+        }
+    }
+
+    private static class PendingRange {
+        private final byte[] range;
+        private final boolean first;
+        private final Future<RangeResult> future;
+
+        private PendingRange(byte[] range, boolean first, Future<RangeResult> future) {
+            this.range = range;
+            this.first = first;
+            this.future = future;
+        }
+    }
+
+    private static class RangeResult {
+        private final List<byte[]> chunks = new ArrayList<>();
+        private final List<Integer> counts = new ArrayList<>();
+        private SplitMetrics metrics;
+    }
+
+    private static class PendingChunk {
+        private final Future<byte[]> future;
+        private final int count;
+        private final Checkpoint checkpoint;
+        private final ChunkIndex index;
+
+        private PendingChunk(Future<byte[]> future, int count, Checkpoint checkpoint, ChunkIndex index) {
+            this.future = future;
+            this.count = count;
+            this.checkpoint = checkpoint;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Collects the {@link ChunkIndex} of one chunk, told about every element after it was copied.
+     */
+    private final class ChunkIndexer {
+        private final boolean keys;
+        private long start = -1;
+        private long end = -1;
+        private int elements;
+        private String firstKey;
+        private String lastKey;
+
+        private ChunkIndexer(boolean keys) {
+            this.keys = keys;
+        }
 
+        private void copied() {
+            if (elements++ == 0) {
+                start = inputOffset(source.elementOffset);
+            }
+            end = inputOffset(source.elementEnd);
+            if (keys) {
+                lastKey = source.getPartitionKey();
+                if (firstKey == null) {
+                    firstKey = lastKey;
                 }
             }
         }
 
+        private ChunkIndex build() {
+            return new ChunkIndex(start, end, elements, firstKey, lastKey);
+        }
+    }
+
+    /**
+     * Statistics of the split so far.
+     */
+    public SplitMetrics getMetrics() {
+        if (source != null) {
+            metrics.elementsScanned = source.elementsScanned;
+            metrics.largestElement = source.largestElement;
+            metrics.peakDepth = source.peakDepth;
+        }
+        metrics.chunkIoNanos = rangeIoNanos + chunk.getNanos();
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        if(source!=null) {
+            source.close();
+        }
     }
 }
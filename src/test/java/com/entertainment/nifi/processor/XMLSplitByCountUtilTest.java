@@ -1,6 +1,13 @@
 package com.entertainment.nifi.processor;
 
+import com.entertainment.nifi.processor.util.ChunkIndex;
+import com.entertainment.nifi.processor.util.LimitExceededException;
+import com.entertainment.nifi.processor.util.PartitionKey;
+import com.entertainment.nifi.processor.util.SplitEngine;
 import com.entertainment.nifi.processor.util.XMLSplitByCountUtil;
+import org.codehaus.stax2.XMLInputFactory2;
+import org.codehaus.stax2.validation.XMLValidationSchema;
+import org.codehaus.stax2.validation.XMLValidationSchemaFactory;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -9,7 +16,15 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Created by dwang on 4/17/17.
@@ -26,7 +41,7 @@ public class XMLSplitByCountUtilTest {
     }
 
     @Test
-    public void testEqualSplit() {
+    public void testEqualSplit() throws IOException {
         InputStream in = null;
         try {
             in = new FileInputStream(new File(testFile));
@@ -48,9 +63,470 @@ public class XMLSplitByCountUtilTest {
 
     }
 
+    @Test
+    public void testCursorEngineMatchesEventEngine() throws IOException {
+        byte[] event = splitAll(SplitEngine.EVENT);
+        byte[] cursor = splitAll(SplitEngine.CURSOR);
+        assert event.length > 0;
+        assert Arrays.equals(event, cursor);
+    }
+
+    @Test
+    public void testVerbatimEngineKeepsSourceText() throws IOException {
+        String source = new String(Files.readAllBytes(new File(testFile).toPath()), "UTF-8");
+        StringBuilder expected = new StringBuilder();
+        Matcher matcher = Pattern.compile("(?s)<book .*?</book>").matcher(source);
+        while (matcher.find()) {
+            expected.append(matcher.group());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(new File(testFile));
+             XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(in, 1, 12, null, null)) {
+            splitter.setEngine(SplitEngine.VERBATIM);
+            assert splitter.writeNext(out) == 12;
+            assert !splitter.hasNext();
+        }
+        assert expected.toString().equals(new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testSplitBySize() throws IOException {
+        for (SplitEngine engine : SplitEngine.values()) {
+            List<Integer> sizes = new java.util.ArrayList<>();
+            int elements = 0;
+            try (InputStream in = new FileInputStream(new File(testFile));
+                 XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(in, 1, 0, "<root>", "</root>")) {
+                splitter.setEngine(engine);
+                splitter.setMaxSplitSize(1000);
+                while (splitter.hasNext()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    elements += splitter.writeNext(out);
+                    sizes.add(out.size());
+                    assert testWellFormed(new ByteArrayInputStream(out.toByteArray()));
+                }
+            }
+            assert elements == 12;
+            assert sizes.size() > 1;
+            for (int i = 0; i < sizes.size() - 1; i++) {
+                assert sizes.get(i) >= 1000;
+            }
+        }
+    }
+
+    @Test
+    public void testParallelSplitKeepsOrder() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (SplitEngine engine : SplitEngine.values()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream in = new FileInputStream(new File(testFile));
+                     XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(in, 1, 5, "<root>", "</root>")) {
+                    splitter.setEngine(engine);
+                    assert splitter.splitParallel(executor, 2, (chunk, elements) -> out.write(chunk)) == 3;
+                }
+                assert Arrays.equals(splitAll(engine), out.toByteArray());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWrapInAncestors() throws IOException {
+        String xml = "<?xml version=\"1.0\"?><r:root xmlns:r=\"urn:r\" v=\"a&amp;b\">"
+                + "<g id=\"1\"><r:x>1</r:x><r:x>2</r:x><r:x>3</r:x></g><g id=\"2\"><r:x>4</r:x></g></r:root>";
+        for (SplitEngine engine : SplitEngine.values()) {
+            List<String> chunks = new java.util.ArrayList<>();
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 2, 2, "<h>", "</h>")) {
+                splitter.setEngine(engine);
+                splitter.setWrapInAncestors(true);
+                while (splitter.hasNext()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    splitter.writeNext(out);
+                    assert testWellFormed(new ByteArrayInputStream(out.toByteArray()));
+                    chunks.add(out.toString("UTF-8"));
+                }
+            }
+            // the chunk is closed where the ancestors change
+            assert chunks.size() == 3;
+            assert chunks.get(0).equals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><r:root xmlns:r=\"urn:r\" v=\"a&amp;b\">"
+                    + "<g id=\"1\"><r:x>1</r:x><r:x>2</r:x></g></r:root>");
+            assert chunks.get(2).contains("<g id=\"2\"><r:x>4</r:x></g>");
+        }
+    }
+
+    @Test
+    public void testMalformedEncodingFails() throws IOException {
+        byte[] xml = "<r><p>a?b</p><p>c</p></r>".getBytes("UTF-8");
+        xml[7] = (byte) 0xFF;
+        for (SplitEngine engine : SplitEngine.values()) {
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml), 1, 1, null, null)) {
+                splitter.setEngine(engine);
+                while (splitter.hasNext()) {
+                    splitter.writeNext(new ByteArrayOutputStream());
+                }
+                assert false : engine;
+            } catch (IOException e) {
+                // no replacement char is made up for the bad byte
+            }
+        }
+    }
+
+    @Test
+    public void testWriteNextRecords() throws IOException {
+        String xml = "<r><p id=\"1\"><tag>a</tag><tag>b</tag><name lang=\"en\">N</name><addr><city>X</city></addr><empty/></p><p id=\"2\"/></r>";
+        for (SplitEngine engine : new SplitEngine[]{SplitEngine.CURSOR, SplitEngine.VERBATIM}) {
+            List<java.util.Map<String, Object>> elements = new java.util.ArrayList<>();
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 1, null, null)) {
+                splitter.setEngine(engine);
+                assert splitter.writeNextRecords(elements::add) == 1;
+                assert splitter.writeNextRecords(elements::add) == 1;
+                assert splitter.writeNextRecords(elements::add) == 0;
+            }
+            java.util.Map<String, Object> first = elements.get(0);
+            assert "1".equals(first.get("id"));
+            assert Arrays.asList("a", "b").equals(first.get("tag"));
+            assert "N".equals(((java.util.Map) first.get("name")).get(XMLSplitByCountUtil.TEXT_FIELD));
+            assert "X".equals(((java.util.Map) first.get("addr")).get("city"));
+            assert first.containsKey("empty") && first.get("empty") == null;
+            assert "2".equals(elements.get(1).get("id"));
+        }
+    }
+
+    @Test
+    public void testWriteNextRecordsRejectsEventEngine() throws IOException {
+        try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream("<r><p/></r>".getBytes("UTF-8")), 1, 1, null, null)) {
+            splitter.setEngine(SplitEngine.EVENT);
+            try {
+                splitter.writeNextRecords(element -> { });
+                assert false;
+            } catch (IOException e) {
+                assert e.getMessage().contains("EVENT");
+            }
+        }
+    }
+
+    @Test
+    public void testElementPath() throws IOException {
+        String xml = "<catalog><book type=\"x\" id=\"1\"/><shelf><book type=\"x\" id=\"2\"/><book id=\"3\"/></shelf><book id=\"4\"/></catalog>";
+        for (SplitEngine engine : SplitEngine.values()) {
+            for (String[] expected : new String[][]{{"/catalog/book", "14"}, {"//book[@type='x']", "12"}, {"/*/shelf/*[@id]", "23"}}) {
+                StringBuilder ids = new StringBuilder();
+                try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 10, "<h>", "</h>")) {
+                    splitter.setEngine(engine);
+                    splitter.setElementPath(com.entertainment.nifi.processor.util.ElementPath.compile(expected[0]));
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    assert splitter.writeNext(out) == expected[1].length();
+                    Matcher matcher = Pattern.compile("id=[\"']([0-9])").matcher(out.toString("UTF-8"));
+                    while (matcher.find()) {
+                        ids.append(matcher.group(1));
+                    }
+                }
+                assert ids.toString().equals(expected[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws IOException {
+        String xml = "<?xml version=\"1.0\"?><r:root xmlns:r=\"urn:r\"><!-- \u00e9\u20ac --><g id=\"1\"><r:x>\u00e9</r:x><r:x>2</r:x><r:x>3</r:x></g>"
+                + "<g id=\"2\"><r:x>\u20ac</r:x><r:x>5</r:x></g></r:root>";
+        byte[] doc = xml.getBytes("UTF-8");
+        for (SplitEngine engine : new SplitEngine[]{SplitEngine.CURSOR, SplitEngine.VERBATIM}) {
+            List<String> all = new java.util.ArrayList<>();
+            List<com.entertainment.nifi.processor.util.Checkpoint> checkpoints = new java.util.ArrayList<>();
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(doc), 2, 2, "<h>", "</h>")) {
+                splitter.setEngine(engine);
+                splitter.setCheckpoints(true);
+                while (splitter.hasNext()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    splitter.writeNext(out);
+                    all.add(out.toString("UTF-8"));
+                    checkpoints.add(splitter.getCheckpoint());
+                }
+            }
+            assert all.size() == 3;
+            assert checkpoints.get(2) == null;
+            for (int i = 0; i < 2; i++) {
+                List<String> rest = new java.util.ArrayList<>();
+                try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(doc), 2, 2, "<h>", "</h>")) {
+                    splitter.setEngine(engine);
+                    splitter.resumeFrom(com.entertainment.nifi.processor.util.Checkpoint.parse(checkpoints.get(i).toString()));
+                    while (splitter.hasNext()) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        splitter.writeNext(out);
+                        rest.add(out.toString("UTF-8"));
+                    }
+                }
+                assert rest.equals(all.subList(i + 1, all.size()));
+            }
+        }
+    }
+
+    @Test
+    public void testResumeKeepsDeclaration() throws IOException {
+        byte[] doc = "<?xml version=\"1.1\" standalone=\"yes\"?><root><a>1</a><a>2</a></root>".getBytes("UTF-8");
+        for (SplitEngine engine : new SplitEngine[]{SplitEngine.CURSOR, SplitEngine.VERBATIM}) {
+            String second;
+            com.entertainment.nifi.processor.util.Checkpoint checkpoint;
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(doc), 1, 1, null, null)) {
+                splitter.setEngine(engine);
+                splitter.setWrapInAncestors(true);
+                splitter.setCheckpoints(true);
+                splitter.writeNext(new ByteArrayOutputStream());
+                checkpoint = splitter.getCheckpoint();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                splitter.writeNext(out);
+                second = out.toString("UTF-8");
+            }
+            assert second.contains("version=\"1.1\"") && second.contains("standalone=\"yes\"") : second;
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(doc), 1, 1, null, null)) {
+                splitter.setEngine(engine);
+                splitter.setWrapInAncestors(true);
+                splitter.resumeFrom(com.entertainment.nifi.processor.util.Checkpoint.parse(checkpoint.toString()));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                splitter.writeNext(out);
+                assert second.equals(out.toString("UTF-8")) : out;
+            }
+            // the dtd is not part of a resumed split
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(
+                    "<!DOCTYPE root [<!ENTITY e \"x\">]><root><a>&e;</a></root>".getBytes("UTF-8")), 1, 1, null, null)) {
+                splitter.setEngine(engine);
+                splitter.setCheckpoints(true);
+                splitter.hasNext();
+                assert false;
+            } catch (IOException e) {
+                assert e.getMessage().contains("DOCTYPE");
+            }
+        }
+    }
+
+    @Test
+    public void testSplitRangesMatchesSerial() throws IOException {
+        String source = new String(Files.readAllBytes(new File(testFile).toPath()), "UTF-8");
+        // a start tag in a comment is not a place to cut, the rest is split serially from the range before it
+        String tricky = source.replace("<genre>Fantasy</genre>", "<!-- <book id=\"no\"> -->");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (String xml : new String[]{source, tricky}) {
+                for (int rangeSize : new int[]{300, 1000, 100000}) {
+                    List<String> serial = new java.util.ArrayList<>();
+                    try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 1, null, null)) {
+                        splitter.setEngine(SplitEngine.VERBATIM);
+                        splitter.setWrapInAncestors(true);
+                        while (splitter.hasNext()) {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream();
+                            splitter.writeNext(out);
+                            serial.add(out.toString("UTF-8"));
+                        }
+                    }
+                    List<String> ranges = new java.util.ArrayList<>();
+                    try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 1, null, null)) {
+                        splitter.setEngine(SplitEngine.VERBATIM);
+                        splitter.setWrapInAncestors(true);
+                        assert splitter.splitRanges(executor, rangeSize, 2, (chunk, elements) -> ranges.add(new String(chunk, "UTF-8"))) == 12;
+                        assert splitter.getMetrics().getElementsEmitted() == 12;
+                    }
+                    assert ranges.equals(serial);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testChunkIndex() throws IOException {
+        String source = new String(Files.readAllBytes(new File(testFile).toPath()), "UTF-8");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (SplitEngine engine : new SplitEngine[]{SplitEngine.CURSOR, SplitEngine.VERBATIM}) {
+                for (boolean parallel : new boolean[]{false, true}) {
+                    List<ChunkIndex> chunks = new java.util.ArrayList<>();
+                    try (InputStream in = new FileInputStream(new File(testFile));
+                         XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(in, 1, 5, null, null)) {
+                        splitter.setEngine(engine);
+                        splitter.setChunkKey(PartitionKey.compile("@id"));
+                        if (parallel) {
+                            splitter.splitParallel(executor, 2, (chunk, elements) -> chunks.add(splitter.getLastChunk()));
+                        } else {
+                            while (splitter.hasNext()) {
+                                splitter.writeNext(new ByteArrayOutputStream());
+                                chunks.add(splitter.getLastChunk());
+                            }
+                        }
+                    }
+                    assert chunks.size() == 3;
+                    assert chunks.get(0).getElements() == 5 && chunks.get(2).getElements() == 2;
+                    assert "bk101".equals(chunks.get(0).getFirstKey()) && "bk105".equals(chunks.get(0).getLastKey());
+                    assert "bk111".equals(chunks.get(2).getFirstKey()) && "bk112".equals(chunks.get(2).getLastKey());
+                    for (ChunkIndex chunk : chunks) {
+                        String range = source.substring((int) chunk.getStart(), (int) chunk.getEnd());
+                        assert range.startsWith("<book id=\"" + chunk.getFirstKey() + "\"");
+                        assert range.endsWith("</book>");
+                    }
+                    assert chunks.get(0).getEnd() < chunks.get(1).getStart();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSplitValidated() throws IOException, XMLStreamException {
+        // any stax2 schema, a dtd needs no schema library
+        XMLValidationSchema schema = XMLValidationSchemaFactory.newInstance(XMLValidationSchema.SCHEMA_ID_DTD).createSchema(
+                new ByteArrayInputStream(("<!ELEMENT catalog (book*)><!ELEMENT book (title, price)><!ATTLIST book id CDATA #REQUIRED>"
+                        + "<!ELEMENT title (#PCDATA)><!ELEMENT price (#PCDATA)>").getBytes("UTF-8")));
+        String xml = "<catalog>"
+                + "<book id=\"1\"><title>a</title><price>1</price></book>"
+                + "<book><title>b</title><price>2</price></book>"
+                + "<book id=\"3\"><title>c</title><price>3</price></book>"
+                + "<book id=\"4\"><title>d</title><isbn/><price>4</price></book>"
+                + "<book id=\"5\"><title>e</title></book>"
+                + "<book id=\"6\"><title>f</title><price>6</price></book>"
+                + "</catalog>";
+        for (SplitEngine engine : new SplitEngine[]{SplitEngine.CURSOR, SplitEngine.VERBATIM}) {
+            List<String> valid = new java.util.ArrayList<>();
+            List<String> invalid = new java.util.ArrayList<>();
+            List<String> problems = new java.util.ArrayList<>();
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 2, "<catalog>", "</catalog>")) {
+                splitter.setEngine(engine);
+                splitter.setSchema(schema);
+                assert splitter.splitValidated((chunk, elements) -> valid.add(new String(chunk, "UTF-8")), (chunk, elements, problem) -> {
+                    invalid.add(new String(chunk, "UTF-8"));
+                    problems.add(problem);
+                }) == 4;
+                assert splitter.getTrailingProblem() == null;
+            }
+            assert valid.size() == 2 && invalid.size() == 2;
+            assert valid.get(0).contains("<book id=\"1\">") && valid.get(0).contains("<book id=\"3\">");
+            assert valid.get(1).contains("<book id=\"6\">");
+            // the problems of the start tag, a child and the end tag are all charged to their element
+            assert invalid.get(0).contains("<book>") && invalid.get(0).contains("<book id=\"4\">");
+            assert invalid.get(1).contains("<book id=\"5\">") && !invalid.get(1).contains("<book id=\"6\">");
+            assert problems.get(0).contains("id");
+            for (String chunk : valid) {
+                assert testWellFormed(new ByteArrayInputStream(chunk.getBytes("UTF-8")));
+            }
+        }
+        try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 2, null, null)) {
+            splitter.setEngine(SplitEngine.EVENT);
+            splitter.setSchema(schema);
+            splitter.splitValidated((chunk, elements) -> { }, (chunk, elements, problem) -> { });
+            assert false;
+        } catch (IOException e) {
+            assert e.getMessage().contains("EVENT");
+        }
+    }
+
+    @Test
+    public void testLimitsFailTheSplit() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append("0123456789");
+        }
+        String huge = "<root><a>small</a><a><b>" + text + "</b></a></root>";
+        StringBuilder deep = new StringBuilder("<root><a>");
+        for (int i = 0; i < 60; i++) {
+            deep.append("<b>");
+        }
+        for (int i = 0; i < 60; i++) {
+            deep.append("</b>");
+        }
+        deep.append("</a></root>");
+        for (SplitEngine engine : SplitEngine.values()) {
+            assert !limitExceeded(XMLSplitByCountUtil.createInputFactory(), huge, engine, 0, false);
+            assert limitExceeded(XMLSplitByCountUtil.createInputFactory(), huge, engine, 10000, false);
+            // the cursor engine streams long text instead
+            assert limitExceeded(XMLSplitByCountUtil.createInputFactory(0, 10000), huge, engine, 0, false) == (engine != SplitEngine.CURSOR);
+            assert !limitExceeded(XMLSplitByCountUtil.createInputFactory(100, 0), deep.toString(), engine, 0, false);
+            assert limitExceeded(XMLSplitByCountUtil.createInputFactory(50, 0), deep.toString(), engine, 0, false);
+        }
+        assert limitExceeded(XMLSplitByCountUtil.createInputFactory(), huge, SplitEngine.CURSOR, 10000, true);
+        assert limitExceeded(XMLSplitByCountUtil.createInputFactory(0, 10000), huge, SplitEngine.CURSOR, 0, true);
+    }
+
+    @Test
+    public void testSplitPartitionedEvictsLeastRecentlyUsed() throws IOException {
+        String xml = "<root><e k=\"a\">1</e><e k=\"b\">2</e><e k=\"a\">3</e><e k=\"c\">4</e><e k=\"a\">5</e><e k=\"b\">6</e></root>";
+        for (SplitEngine engine : new SplitEngine[]{SplitEngine.CURSOR, SplitEngine.VERBATIM}) {
+            List<String> chunks = new ArrayList<>();
+            try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(XMLSplitByCountUtil.createInputFactory(),
+                    XMLSplitByCountUtil.createOutputFactory(), null, new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 10, "<root>", "</root>")) {
+                splitter.setEngine(engine);
+                splitter.setPartitionKey(PartitionKey.compile("@k"));
+                int count = splitter.splitPartitioned(2, (key, chunk, elements) -> {
+                    String content = new String(chunk, "UTF-8");
+                    assert content.split("<e ").length - 1 == elements;
+                    chunks.add(key + ":" + content.replaceAll("<[^>]*>|\\s", ""));
+                });
+                assert count == 4;
+            }
+            // c evicts b, the least recently used, and the second b evicts c; a stays open until the end
+            assert chunks.equals(Arrays.asList("b:2", "c:4", "a:135", "b:6")) : chunks;
+        }
+    }
+
+    @Test
+    public void testFailedSplitDeletesFiles() throws IOException {
+        Path workDir = Files.createTempDirectory("xmlsplit");
+        try {
+            xmlSplitByCountUtil = new XMLSplitByCountUtil(workDir, new ByteArrayInputStream(
+                    "<root><a>1</a><a>2</a><a>3</a><a></root>".getBytes("UTF-8")), 1, 1, "<root>", "</root>");
+            try {
+                xmlSplitByCountUtil.split();
+                assert false;
+            } catch (IOException e) {
+                // the malformed last element fails the split
+            }
+            try (Stream<Path> files = Files.list(workDir)) {
+                assert files.count() == 0;
+            }
+        } finally {
+            Files.delete(workDir);
+        }
+    }
+
+    private static boolean limitExceeded(XMLInputFactory2 xmlInputFactory, String xml, SplitEngine engine, long maxElementSize,
+                                         boolean records) throws IOException {
+        try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(xmlInputFactory, XMLSplitByCountUtil.createOutputFactory(), null,
+                new ByteArrayInputStream(xml.getBytes("UTF-8")), 1, 1, null, null)) {
+            splitter.setEngine(engine);
+            splitter.setMaxElementSize(maxElementSize);
+            while (splitter.hasNext()) {
+                if (records) {
+                    splitter.writeNextRecords(element -> { });
+                } else {
+                    splitter.writeNext(new ByteArrayOutputStream());
+                }
+            }
+            return false;
+        } catch (LimitExceededException e) {
+            return true;
+        }
+    }
+
+    private byte[] splitAll(SplitEngine engine) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(new File(testFile));
+             XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(in, 1, 5, "<root>", "</root>")) {
+            splitter.setEngine(engine);
+            int chunks = 0;
+            while (splitter.hasNext()) {
+                splitter.writeNext(out);
+                chunks++;
+            }
+            assert chunks == 3;
+        }
+        return out.toByteArray();
+    }
+
     //not equal split
     //@Test
-    public void testNoEqualSplit() {
+    public void testNoEqualSplit() throws IOException {
         InputStream in = null;
         try {
             in = new FileInputStream(new File(testFile2));
@@ -71,10 +547,18 @@ public class XMLSplitByCountUtilTest {
     }
 
     private boolean testWellFormed(File xmlFile){
+        try {
+            return testWellFormed(new FileInputStream(xmlFile));
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private boolean testWellFormed(InputStream inputStream){
         XMLInputFactory factory = XMLInputFactory.newInstance();
         boolean wellFormed=false;
         try {
-            FileInputStream inputStream = new FileInputStream(xmlFile);
 //Instantiate a reader parsing:
             XMLStreamReader reader = factory.createXMLStreamReader(inputStream);
 
@@ -83,8 +567,6 @@ public class XMLSplitByCountUtilTest {
                 reader.next();
             }
             wellFormed=true;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
         } catch (XMLStreamException e) {
             e.printStackTrace();
         }
@@ -1,6 +1,22 @@
 package com.entertainment.nifi.processor;
 
+import com.entertainment.nifi.processor.util.SplitEngine;
 import com.entertainment.nifi.processor.util.XMLSplitByCountUtil;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -8,12 +24,23 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Created by dwang on 4/21/17.
@@ -44,4 +71,558 @@ public class XMLSplitterTest {
         }
         assert results.size()>0;
     }
+
+    @Test
+    public void testOnTriggerContentRepository() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.HEADER, "<catalog>");
+        runner.setProperty(XMLSplitter.FOOTER, "</catalog>");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        Path inputXML = FileSystems.getDefault().getPath("target/test-classes/test.xml");
+        runner.enqueue(inputXML);
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size()==3;
+        for(int i=0;i<results.size();i++) {
+            MockFlowFile file = results.get(i);
+            file.assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, Integer.toString(i));
+            file.assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, "3");
+            String content = new String(file.toByteArray(), "UTF-8");
+            assert content.startsWith("<catalog>");
+            assert content.endsWith("</catalog>");
+        }
+        assert new String(results.get(2).toByteArray(), "UTF-8").split("<book ").length==3;
+    }
+
+    @Test
+    public void testOnTriggerCommitBatches() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.COMMIT_BATCH_SIZE, "2");
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        Path inputXML = FileSystems.getDefault().getPath("target/test-classes/test.xml");
+        runner.enqueue(inputXML);
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+        MockFlowFile original = runner.getFlowFilesForRelationship(XMLSplitter.REL_ORIGINAL).get(0);
+        original.assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, "3");
+
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size()==3;
+        for(int i=0;i<results.size();i++) {
+            MockFlowFile file = results.get(i);
+            file.assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, Integer.toString(i));
+            file.assertAttributeEquals(XMLSplitter.FRAGMENT_IDENTIFIER, original.getAttribute(XMLSplitter.FRAGMENT_IDENTIFIER));
+            file.assertAttributeNotExists(XMLSplitter.FRAGMENT_COUNT);
+            file.assertAttributeEquals("filename", original.getAttribute("filename"));
+        }
+    }
+
+    @Test
+    public void testOnTriggerCountersAndProvenance() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        Path inputXML = FileSystems.getDefault().getPath("target/test-classes/test.xml");
+        runner.enqueue(inputXML);
+        runner.run(1);
+
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 3);
+        long bytesOut = 0;
+        for (MockFlowFile split : runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT)) {
+            bytesOut += split.getSize();
+        }
+        assert runner.getCounterValue("Bytes In") == Files.size(inputXML);
+        assert runner.getCounterValue("Bytes Out") == bytesOut;
+        assert runner.getCounterValue("Chunks") == 3;
+        // the root and its 12 books, whose children are copied without being scanned
+        assert runner.getCounterValue("Elements Scanned") == 13;
+        assert runner.getCounterValue("Elements Emitted") == 12;
+        for (String timer : new String[]{"Parse Time (ms)", "Write Time (ms)", "IO Time (ms)"}) {
+            assert runner.getCounterValue(timer) != null && runner.getCounterValue(timer) >= 0;
+        }
+
+        ProvenanceEventRecord route = null;
+        for (ProvenanceEventRecord event : runner.getProvenanceEvents()) {
+            if (event.getEventType() == ProvenanceEventType.ROUTE) {
+                route = event;
+            }
+        }
+        assert route != null && XMLSplitter.REL_ORIGINAL.getName().equals(route.getRelationship());
+        assert route.getDetails().matches(bytesOut + " bytes out, elements scanned 13, emitted 12, largest element \\d+ chars, "
+                + "peak depth 2, parse \\d+ ms, write \\d+ ms, io \\d+ ms") : route.getDetails();
+    }
+
+    @Test
+    public void testOnTriggerRecordWriter() throws Exception {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+        LineRecordWriter writer = new LineRecordWriter();
+        runner.addControllerService("writer", writer);
+        runner.enableControllerService(writer);
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "2");
+        runner.setProperty(XMLSplitter.RECORD_WRITER, "writer");
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.assertValid();
+        // the writer owns the format of the splits
+        runner.setProperty(XMLSplitter.HEADER, "<catalog>");
+        runner.assertNotValid();
+        runner.removeProperty(XMLSplitter.HEADER);
+        runner.setProperty(XMLSplitter.OUTPUT_COMPRESSION, XMLSplitter.COMPRESSION_GZIP.getValue());
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.OUTPUT_COMPRESSION, XMLSplitter.COMPRESSION_NONE.getValue());
+        runner.assertValid();
+
+        runner.enqueue(("<catalog>"
+                + "<book id=\"b1\"><title>A</title><author>X</author><author>Y</author><price currency=\"USD\">5.95</price></book>"
+                + "<book id=\"b2\"><title>B</title><author>Z</author><isbn>dropped</isbn></book>"
+                + "<book id=\"b3\"><title>C</title></book>"
+                + "</catalog>").getBytes("UTF-8"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size() == 2;
+        // repeated children become an array, an element with attributes a record, anything the schema does not name is dropped
+        results.get(0).assertContentEquals("b1|A|[X, Y]|USD 5.95\nb2|B|[Z]|null\n");
+        results.get(1).assertContentEquals("b3|C|null|null\n");
+        for (int i = 0; i < results.size(); i++) {
+            MockFlowFile split = results.get(i);
+            split.assertAttributeEquals("record.count", Integer.toString(2 - i));
+            split.assertAttributeEquals("mime.type", "text/plain");
+            split.assertAttributeEquals("line.writer", "true");
+            split.assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, Integer.toString(i));
+        }
+    }
+
+    /**
+     * Writes a record per line, its fields separated by '|', with the schema of a book.
+     */
+    private static class LineRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+        private static final RecordSchema PRICE = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("currency", RecordFieldType.STRING.getDataType()),
+                new RecordField("value", RecordFieldType.STRING.getDataType())));
+        private static final RecordSchema BOOK = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("id", RecordFieldType.STRING.getDataType()),
+                new RecordField("title", RecordFieldType.STRING.getDataType()),
+                new RecordField("author", RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.STRING.getDataType())),
+                new RecordField("price", RecordFieldType.RECORD.getRecordDataType(PRICE))));
+
+        @Override
+        public RecordSchema getSchema(FlowFile flowFile, InputStream content) {
+            return BOOK;
+        }
+
+        @Override
+        public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, FlowFile flowFile, OutputStream out) {
+            return new RecordSetWriter() {
+                private int count;
+
+                public void beginRecordSet() {
+                }
+
+                public WriteResult write(Record record) throws IOException {
+                    Object[] authors = (Object[]) record.getValue("author");
+                    Record price = (Record) record.getValue("price");
+                    out.write((record.getValue("id") + "|" + record.getValue("title") + "|"
+                            + (authors == null ? null : Arrays.toString(authors)) + "|"
+                            + (price == null ? null : price.getValue("currency") + " " + price.getValue("value")) + "\n").getBytes("UTF-8"));
+                    count++;
+                    return result(1);
+                }
+
+                public WriteResult write(RecordSet recordSet) throws IOException {
+                    Record record;
+                    while ((record = recordSet.next()) != null) {
+                        write(record);
+                    }
+                    return result(count);
+                }
+
+                public WriteResult finishRecordSet() {
+                    return result(count);
+                }
+
+                public String getMimeType() {
+                    return "text/plain";
+                }
+
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                public void close() throws IOException {
+                    out.close();
+                }
+            };
+        }
+
+        private static WriteResult result(int count) {
+            return new WriteResult() {
+                public int getRecordCount() {
+                    return count;
+                }
+
+                public Map<String, String> getAttributes() {
+                    return Collections.singletonMap("line.writer", "true");
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testOnTriggerPartitionKey() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "10");
+        runner.setProperty(XMLSplitter.HEADER, "<catalog>");
+        runner.setProperty(XMLSplitter.FOOTER, "</catalog>");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.PARTITION_KEY, "genre");
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.MAX_SPLIT_SIZE, "1 MB");
+        Path inputXML = FileSystems.getDefault().getPath("target/test-classes/test.xml");
+        runner.enqueue(inputXML);
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        // Computer, Fantasy, Horror, Romance and Science Fiction
+        assert results.size()==5;
+        for(MockFlowFile file: results) {
+            String key = file.getAttribute(XMLSplitter.PARTITION_KEY_ATTRIBUTE);
+            String content = new String(file.toByteArray(), "UTF-8");
+            assert content.split("<genre>").length - 1 == content.split("<genre>" + key + "</genre>").length - 1;
+        }
+    }
+
+    @Test
+    public void testOnTriggerMaxOpenPartitions() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "10");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.PARTITION_KEY, "genre");
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.MAX_SPLIT_SIZE, "1 MB");
+        runner.setProperty(XMLSplitter.MAX_OPEN_PARTITIONS, "2");
+        runner.enqueue(FileSystems.getDefault().getPath("target/test-classes/test.xml"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        // every new genre evicts the least recently used one, Computer comes back after it was evicted
+        String[] keys = {"Computer", "Fantasy", "Romance", "Horror", "Science Fiction", "Computer"};
+        int[] books = {1, 4, 2, 1, 1, 3};
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size() == keys.length;
+        for (int i = 0; i < keys.length; i++) {
+            MockFlowFile file = results.get(i);
+            file.assertAttributeEquals(XMLSplitter.PARTITION_KEY_ATTRIBUTE, keys[i]);
+            file.assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, Integer.toString(i));
+            file.assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, Integer.toString(keys.length));
+            assert new String(file.toByteArray(), "UTF-8").split("<book ").length - 1 == books[i];
+        }
+    }
+
+    @Test
+    public void testOnTriggerCompression() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.HEADER, "<catalog>");
+        runner.setProperty(XMLSplitter.FOOTER, "</catalog>");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.WRITER_THREADS, "2");
+        runner.setProperty(XMLSplitter.INPUT_COMPRESSION, XMLSplitter.COMPRESSION_DETECT.getValue());
+        runner.setProperty(XMLSplitter.OUTPUT_COMPRESSION, XMLSplitter.COMPRESSION_GZIP.getValue());
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(compressed)) {
+            Files.copy(FileSystems.getDefault().getPath("target/test-classes/test.xml"), out);
+        }
+        runner.enqueue(compressed.toByteArray());
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size()==3;
+        for(MockFlowFile file: results) {
+            file.assertAttributeEquals("mime.type", "application/gzip");
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(file.toByteArray()))) {
+                byte[] buffer = new byte[4096];
+                for (int read; (read = in.read(buffer)) > 0; ) {
+                    content.write(buffer, 0, read);
+                }
+            }
+            assert content.toString("UTF-8").startsWith("<catalog>");
+            assert content.toString("UTF-8").endsWith("</catalog>");
+        }
+    }
+
+    @Test
+    public void testOnTriggerResumesFromCheckpoint() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.COMMIT_BATCH_SIZE, "1");
+        runner.setProperty(XMLSplitter.CHECKPOINT_BATCHES, "true");
+        Path inputXML = FileSystems.getDefault().getPath("target/test-classes/test.xml");
+        MockFlowFile flowFile = runner.enqueue(inputXML);
+
+        // where an earlier run got to after committing its first split
+        String checkpoint;
+        try (XMLSplitByCountUtil splitter = new XMLSplitByCountUtil(Files.newInputStream(inputXML), 1, 5, null, null)) {
+            splitter.setEngine(SplitEngine.CURSOR);
+            splitter.setCheckpoints(true);
+            splitter.writeNext(new ByteArrayOutputStream());
+            checkpoint = splitter.getCheckpoint().toString();
+        }
+        String uuid = flowFile.getAttribute("uuid");
+        Map<String, String> state = new HashMap<>();
+        state.put(uuid + ".fragment.identifier", "resumed");
+        state.put(uuid + ".fragment.index", "1");
+        state.put(uuid + ".checkpoint", checkpoint);
+        runner.getStateManager().setState(state, Scope.LOCAL);
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        MockFlowFile original = runner.getFlowFilesForRelationship(XMLSplitter.REL_ORIGINAL).get(0);
+        original.assertAttributeEquals(XMLSplitter.FRAGMENT_IDENTIFIER, "resumed");
+        original.assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, "3");
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size()==2;
+        results.get(0).assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, "1");
+        results.get(1).assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, "2");
+        assert new String(results.get(1).toByteArray(), "UTF-8").split("<book ").length==3;
+        runner.getStateManager().assertStateNotSet(uuid + ".checkpoint", Scope.LOCAL);
+    }
+
+    @Test
+    public void testOnTriggerKeepsCheckpointOnFailure() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "1");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.COMMIT_BATCH_SIZE, "1");
+        runner.setProperty(XMLSplitter.CHECKPOINT_BATCHES, "true");
+        // the last book is never closed
+        MockFlowFile flowFile = runner.enqueue("<catalog><book>1</book><book>2</book><book></catalog>".getBytes("UTF-8"));
+        runner.run(1);
+
+        runner.assertTransferCount(XMLSplitter.REL_FAILURE, 1);
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 2);
+        // a retry of the failed original resumes after the two committed splits
+        String uuid = flowFile.getAttribute("uuid");
+        assert runner.getStateManager().getState(Scope.LOCAL).get(uuid + ".checkpoint") != null;
+        runner.getStateManager().assertStateEquals(uuid + ".fragment.index", "2", Scope.LOCAL);
+    }
+
+    @Test
+    public void testOnTriggerFlowFileBatch() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "${count}");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.SPLIT_ENGINE, SplitEngine.VERBATIM.name());
+        runner.setProperty(XMLSplitter.FLOWFILE_BATCH_SIZE, "3");
+        Path inputXML = FileSystems.getDefault().getPath("target/test-classes/test.xml");
+        for (String count : new String[]{"4", "6", "12"}) {
+            Map<String, String> attributes = new HashMap<>();
+            attributes.put("count", count);
+            runner.enqueue(inputXML, attributes);
+        }
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 3);
+        // the count is evaluated for every FlowFile of the batch
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 3 + 2 + 1);
+    }
+
+    @Test
+    public void testOnTriggerCommitBatchFails() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "1");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.COMMIT_BATCH_SIZE, "2");
+        runner.setProperty(XMLSplitter.FLOWFILE_BATCH_SIZE, "2");
+        runner.setRunSchedule(100);
+        // the last book is never closed
+        runner.enqueue("<catalog><book>1</book><book>2</book><book>3</book><book>4</book><book>5</book><book></catalog>".getBytes("UTF-8"));
+        runner.enqueue("<catalog><book>ok</book></catalog>".getBytes("UTF-8"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_FAILURE, 1);
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+        // the two committed batches of the failed original stay, its fifth split is withdrawn
+        List<MockFlowFile> results = runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT);
+        assert results.size() == 5;
+        assert new String(results.get(4).toByteArray(), "UTF-8").contains("<book>ok</book>");
+        runner.getFlowFilesForRelationship(XMLSplitter.REL_ORIGINAL).get(0).assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, "1");
+    }
+
+    @Test
+    public void testOnTriggerMalformedEncoding() throws IOException {
+        byte[] xml = "<catalog><book>a?b</book><book>c</book></catalog>".getBytes("UTF-8");
+        // not a utf-8 byte anywhere
+        xml[16] = (byte) 0xFF;
+        for (SplitEngine engine : SplitEngine.values()) {
+            TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+            runner.setValidateExpressionUsage(false);
+            runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+            runner.setProperty(XMLSplitter.SPLIT_COUNT, "1");
+            runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+            runner.setProperty(XMLSplitter.SPLIT_ENGINE, engine.name());
+            runner.enqueue(xml);
+            runner.run(1);
+
+            runner.assertQueueEmpty();
+            runner.assertTransferCount(XMLSplitter.REL_FAILURE, 1);
+            runner.assertTransferCount(XMLSplitter.REL_SPLIT, 0);
+        }
+    }
+
+    @Test
+    public void testOnTriggerOversized() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.MAX_ELEMENT_SIZE, "100 B");
+        runner.setProperty(XMLSplitter.FLOWFILE_BATCH_SIZE, "2");
+        runner.enqueue(FileSystems.getDefault().getPath("target/test-classes/test.xml"));
+        runner.enqueue("<catalog><book>small</book></catalog>".getBytes("UTF-8"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        // the books of test.xml are larger than 100 chars
+        runner.assertTransferCount(XMLSplitter.REL_OVERSIZED, 1);
+        runner.assertTransferCount(XMLSplitter.REL_FAILURE, 0);
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 1);
+    }
+
+    @Test
+    public void testOnTriggerOversizedAfterCommit() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "1");
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.setProperty(XMLSplitter.COMMIT_BATCH_SIZE, "1");
+        runner.setProperty(XMLSplitter.MAX_ELEMENT_SIZE, "100 B");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("0123456789");
+        }
+        runner.enqueue(("<catalog><book>1</book><book>2</book><book>" + text + "</book></catalog>").getBytes("UTF-8"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 2);
+        runner.assertTransferCount(XMLSplitter.REL_OVERSIZED, 1);
+        // where a replay picks up, the first two splits are downstream already
+        MockFlowFile oversized = runner.getFlowFilesForRelationship(XMLSplitter.REL_OVERSIZED).get(0);
+        oversized.assertAttributeEquals(XMLSplitter.FRAGMENT_INDEX, "2");
+        oversized.assertAttributeEquals(XMLSplitter.FRAGMENT_IDENTIFIER,
+                runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT).get(0).getAttribute(XMLSplitter.FRAGMENT_IDENTIFIER));
+    }
+
+    @Test
+    public void testOnTriggerManifest() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.WRITE_MANIFEST, "true");
+        runner.setProperty(XMLSplitter.MANIFEST_KEY, "@id");
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.enqueue(FileSystems.getDefault().getPath("target/test-classes/test.xml"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 3);
+        runner.assertTransferCount(XMLSplitter.REL_MANIFEST, 1);
+        MockFlowFile manifest = runner.getFlowFilesForRelationship(XMLSplitter.REL_MANIFEST).get(0);
+        manifest.assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, "3");
+        manifest.assertAttributeEquals(XMLSplitter.FRAGMENT_IDENTIFIER,
+                runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT).get(0).getAttribute(XMLSplitter.FRAGMENT_IDENTIFIER));
+        String[] lines = new String(manifest.toByteArray(), "UTF-8").split("\n");
+        // one split per line between the brackets of the array
+        assert lines.length == 5;
+        assert lines[1].startsWith("{\"fragment.index\":0,") && lines[1].endsWith(",\"elements\":5,\"first.key\":\"bk101\",\"last.key\":\"bk105\"},");
+        assert lines[3].startsWith("{\"fragment.index\":2,") && lines[3].contains("\"last.key\":\"bk112\"");
+    }
+
+    @Test
+    public void testOnTriggerInvalid() throws IOException {
+        TestRunner runner= TestRunners.newTestRunner(new XMLSplitter());
+
+        runner.setValidateExpressionUsage(false);
+        runner.setProperty(XMLSplitter.SPLIT_DEPTH, "1");
+        runner.setProperty(XMLSplitter.SPLIT_COUNT, "5");
+        runner.setProperty(XMLSplitter.SCHEMA_FILE, "target/test-classes/catalog.xsd");
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.OUTPUT_STRATEGY, XMLSplitter.OUTPUT_CONTENT_REPOSITORY.getValue());
+        runner.assertNotValid();
+        runner.setProperty(XMLSplitter.MAX_SPLIT_SIZE, "1 MB");
+        runner.enqueue(FileSystems.getDefault().getPath("target/test-classes/test.xml"));
+        runner.run(1);
+
+        runner.assertQueueEmpty();
+        // the one Horror book is not in the genres of the schema
+        runner.assertTransferCount(XMLSplitter.REL_SPLIT, 3);
+        runner.assertTransferCount(XMLSplitter.REL_INVALID, 1);
+        runner.assertTransferCount(XMLSplitter.REL_ORIGINAL, 1);
+        runner.getFlowFilesForRelationship(XMLSplitter.REL_SPLIT).get(0).assertAttributeEquals(XMLSplitter.FRAGMENT_COUNT, "3");
+        MockFlowFile invalid = runner.getFlowFilesForRelationship(XMLSplitter.REL_INVALID).get(0);
+        invalid.assertAttributeExists(XMLSplitter.VALIDATION_ERROR);
+        assert new String(invalid.toByteArray(), "UTF-8").contains("<genre>Horror</genre>");
+        runner.getFlowFilesForRelationship(XMLSplitter.REL_ORIGINAL).get(0).assertAttributeNotExists(XMLSplitter.VALIDATION_ERROR);
+    }
 }